@@ -4,48 +4,97 @@ package nl.cyberwizzard.repdroid;
 enum state {FIND_VAL, FIND_ARG};
 
 public abstract class Command {
-	protected static int code = -1;
-	protected static boolean hasArgs = false;
+	protected int code = -1;
+	protected boolean hasArgs = false;
 	
-	protected static byte[] buf = new byte[128];
-	protected static int buflen = 0;
+	protected byte[] buf = new byte[128];
+	protected int buflen = 0;
 	
-	public static int getCode() {
+	public int getCode() {
 		return code;
 	}
 	
-	public static int parseIntFromCharBuf(int start, int end) {
+	public int parseIntFromCharBuf(int start, int end) {
+		return parseIntFromCharBuf(buf, start, end);
+	}
+	
+	public float parseFloatFromCharBuf(int start, int end) {
+		return parseFloatFromCharBuf(buf, start, end);
+	}
+	
+	/**
+	 * Parse an integer from a byte range without creating any objects. Parsing stops at the
+	 * first non-numeric character; a leading '-' is accepted.
+	 * @param b Buffer holding the characters
+	 * @param start Index of the first character
+	 * @param end Index just past the last character
+	 * @return The parsed value or -1 when the range is empty
+	 */
+	public static int parseIntFromCharBuf(byte[] b, int start, int end) {
 		if(start >= end) return -1;
 		int res = 0;
+		boolean neg = false;
 		for(int i=start;i<end;i++) {
-			if(buf[i] < '0' || buf[i] > '9')
+			if(b[i] == '-' && i == start) {
+				neg = true;
+				continue;
+			}
+			if(b[i] < '0' || b[i] > '9')
 				// Invalid char - bail
-				return res;
-			res += (buf[i] - '0');
-			if(i<end-1) res *= 10;
+				break;
+			res = res * 10 + (b[i] - '0');
 		}
-		return res;
+		return neg ? -res : res;
 	}
 	
-	public static float parseFloatFromCharBuf(int start, int end) {
+	/**
+	 * Parse a decimal number from a byte range without creating any objects. Parsing stops at
+	 * the first character which can not be part of the number; a leading '-' is accepted.
+	 * @param b Buffer holding the characters
+	 * @param start Index of the first character
+	 * @param end Index just past the last character
+	 * @return The parsed value or -1.0 when the range is empty
+	 */
+	public static float parseFloatFromCharBuf(byte[] b, int start, int end) {
 		if(start >= end) return -1.0f;
 		float res = 0.0f, divider = 1.0f;
-		boolean hasFrac = false;
+		boolean hasFrac = false, neg = false;
 		for(int i=start;i<end;i++) {
-			if((buf[i] < '0' || buf[i] > '9') && buf[i] != '.') {
-				// Invalid char, bail
-				return res / divider;
+			if(b[i] == '-' && i == start) {
+				neg = true;
+				continue;
 			}
-			if(buf[i] == '.') hasFrac = true;
-			else {
-				res += (float)(buf[i] - '0');
-				if(hasFrac) divider *= 10.0f;
-				if(i<end-1) {
-					res *= 10.0f;
-				}
+			if(b[i] == '.' && !hasFrac) {
+				hasFrac = true;
+				continue;
 			}
+			if(b[i] < '0' || b[i] > '9')
+				// Invalid char, bail
+				break;
+			res = res * 10.0f + (float)(b[i] - '0');
+			if(hasFrac) divider *= 10.0f;
+		}
+		return neg ? -res / divider : res / divider;
+	}
+	
+	/**
+	 * Test if a byte range holds exactly one decimal number as parseFloatFromCharBuf() reads
+	 * it: an optional '-', digits and at most one '.', with at least one digit.
+	 * @param b Buffer holding the characters
+	 * @param start Index of the first character
+	 * @param end Index just past the last character
+	 * @return True if the whole range is a number
+	 */
+	public static boolean isNumber(byte[] b, int start, int end) {
+		int i = start;
+		if(i < end && b[i] == '-') i++;
+		boolean digits = false, hasFrac = false;
+		for(;i<end;i++) {
+			if(b[i] >= '0' && b[i] <= '9') digits = true;
+			else if(b[i] == '.' && !hasFrac) hasFrac = true;
+			else return false;
 		}
-		return res / divider;
+		return digits;
 	}
 	
 }
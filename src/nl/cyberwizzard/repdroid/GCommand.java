@@ -1,6 +1,5 @@
 package nl.cyberwizzard.repdroid;
 
-import android.util.Log;
 
 /**
  * Class to wrap a G-code.
@@ -12,13 +11,15 @@ import android.util.Log;
 
 public final class GCommand extends Command {
 	// Holders for the limited number of possible arguments (faster than an dynamic array of objects)
-	static float arg_X = 0.0f, arg_Y = 0.0f, arg_Z = 0.0f, arg_E = 0.0f, arg_F = 0.0f, arg_P = 0.0f;
-	static boolean has_X = false, has_Y = false, has_Z = false, has_E = false, has_F = false, has_P = false;
+	float arg_X = 0.0f, arg_Y = 0.0f, arg_Z = 0.0f, arg_E = 0.0f, arg_F = 0.0f, arg_P = 0.0f;
+	boolean has_X = false, has_Y = false, has_Z = false, has_E = false, has_F = false, has_P = false;
+	// Letter of the first argument whose value is not a number, 0 if there is none
+	byte badArg = 0;
 	
-	// Private constructor - can not be instantiated
-	private GCommand() {}
+	// Every parser thread or session keeps its own instance and reuses it for each line
+	public GCommand() {}
 	
-	public static void setData(byte[] cbuf, int len) throws Exception {
+	public void setData(byte[] cbuf, int len) throws Exception {
 		// Reset for new command
 		buflen = 0;
 		code = -1;
@@ -37,7 +38,7 @@ public final class GCommand extends Command {
 			byte c = buf[i];
 			if(c < '0' || c > '9') {
 				// Non-numeric character, must be the ending
-				if(i==1) throw new Exception("Malformed G-code: " + cbuf.toString());
+				if(i==1) throw new Exception("Malformed G-code: " + new String(cbuf, 0, len));
 				// Convert into a value
 				code = parseIntFromCharBuf(1, i);
 				// Exit loop
@@ -46,19 +47,19 @@ public final class GCommand extends Command {
 		}
 
 		// Make sure the code is valid
-		if(code == -1) throw new Exception("Invalid G-code: " + cbuf.toString());
+		if(code == -1) throw new Exception("Invalid G-code: " + new String(cbuf, 0, len));
 	}
 	
 	/**
 	 * Get the offset for the X axis in mm or inches. Depending on the opcode this is used differently.
-	 * G0/G1: Move to position on X axis
+	 * G0-G3: Move to position on X axis
 	 * G28: Home X axis (value ignored)
 	 * G92: Set the current X position
 	 * @return
 	 * @throws ArgumentInvalidException
 	 * @throws ArgumentNotFoundException
 	 */
-	public static float getX() throws ArgumentInvalidException, ArgumentNotFoundException {
+	public float getX() throws ArgumentInvalidException, ArgumentNotFoundException {
 		// Make sure the arguments are parsed
 		if(!hasArgs) parseArguments();
 		
@@ -66,6 +67,8 @@ public final class GCommand extends Command {
 		switch(code) {
 		case 0:
 		case 1:
+		case 2:
+		case 3:
 		case 28:
 		case 92:
 			break;
@@ -79,14 +82,14 @@ public final class GCommand extends Command {
 
 	/**
 	 * Get the offset for the Y axis in mm or inches. Depending on the opcode this is used differently.
-	 * G0/G1: Move to position on Y axis
+	 * G0-G3: Move to position on Y axis
 	 * G28: Home Y axis (value ignored)
 	 * G92: Set the current Y position
 	 * @return
 	 * @throws ArgumentInvalidException
 	 * @throws ArgumentNotFoundException
 	 */
-	public static float getY() throws ArgumentInvalidException, ArgumentNotFoundException {
+	public float getY() throws ArgumentInvalidException, ArgumentNotFoundException {
 		// Make sure the arguments are parsed
 		if(!hasArgs) parseArguments();
 		
@@ -94,6 +97,8 @@ public final class GCommand extends Command {
 		switch(code) {
 		case 0:
 		case 1:
+		case 2:
+		case 3:
 		case 28:
 		case 92:
 			break;
@@ -107,14 +112,14 @@ public final class GCommand extends Command {
 	
 	/**
 	 * Get the offset for the Z axis in mm or inches. Depending on the opcode this is used differently.
-	 * G0/G1: Move to position on Z axis
+	 * G0-G3: Move to position on Z axis
 	 * G28: Home Z axis (value ignored)
 	 * G92: Set the current Z position
 	 * @return
 	 * @throws ArgumentInvalidException
 	 * @throws ArgumentNotFoundException
 	 */
-	public static float getZ() throws ArgumentInvalidException, ArgumentNotFoundException {
+	public float getZ() throws ArgumentInvalidException, ArgumentNotFoundException {
 		// Make sure the arguments are parsed
 		if(!hasArgs) parseArguments();
 		
@@ -122,6 +127,8 @@ public final class GCommand extends Command {
 		switch(code) {
 		case 0:
 		case 1:
+		case 2:
+		case 3:
 		case 28:
 		case 92:
 			break;
@@ -135,13 +142,13 @@ public final class GCommand extends Command {
 	
 	/**
 	 * Get the offset for the E axis in mm or inches. Depending on the opcode this is used differently.
-	 * G0/G1: Move to position on E axis
+	 * G0-G3: Move to position on E axis
 	 * G92: Set the current E position
 	 * @return
 	 * @throws ArgumentInvalidException
 	 * @throws ArgumentNotFoundException
 	 */
-	public static float getE() throws ArgumentInvalidException, ArgumentNotFoundException {
+	public float getE() throws ArgumentInvalidException, ArgumentNotFoundException {
 		// Make sure the arguments are parsed
 		if(!hasArgs) parseArguments();
 		
@@ -149,6 +156,8 @@ public final class GCommand extends Command {
 		switch(code) {
 		case 0:
 		case 1:
+		case 2:
+		case 3:
 		case 92:
 			break;
 		default:
@@ -161,12 +170,12 @@ public final class GCommand extends Command {
 	
 	/**
 	 * Get the feed rate, in mm/min
-	 * G0/G1: Set feed rate
+	 * G0-G3: Set feed rate
 	 * @return
 	 * @throws ArgumentInvalidException
 	 * @throws ArgumentNotFoundException
 	 */
-	public static float getF() throws ArgumentInvalidException, ArgumentNotFoundException {
+	public float getF() throws ArgumentInvalidException, ArgumentNotFoundException {
 		// Make sure the arguments are parsed
 		if(!hasArgs) parseArguments();
 		
@@ -174,6 +183,8 @@ public final class GCommand extends Command {
 		switch(code) {
 		case 0:
 		case 1:
+		case 2:
+		case 3:
 			break;
 		default:
 			throw new ArgumentInvalidException(code, 'F');
@@ -189,7 +200,7 @@ public final class GCommand extends Command {
 	 * @throws ArgumentInvalidException
 	 * @throws ArgumentNotFoundException
 	 */
-	public static float getP() throws ArgumentInvalidException, ArgumentNotFoundException {
+	public float getP() throws ArgumentInvalidException, ArgumentNotFoundException {
 		// Make sure the arguments are parsed
 		if(!hasArgs) parseArguments();
 		
@@ -205,7 +216,7 @@ public final class GCommand extends Command {
 		return arg_P;
 	}
 	
-	public static String explain() throws ArgumentInvalidException, ArgumentNotFoundException {
+	public String explain() throws ArgumentInvalidException, ArgumentNotFoundException {
 		String str = "";
 		switch(code) {
 		case 0:
@@ -232,8 +243,19 @@ public final class GCommand extends Command {
 				str += "using feedrate:"+f;
 			} catch(ArgumentNotFoundException e) {}
 			return str;
+		case 2:
+		case 3:
+			return "G" + code + " - Arc " + (code == 2 ? "clockwise" : "counter-clockwise");
 		case 4:
 			return "G4 - Dwell "+getP()+"ms";
+		case 10:
+			return "G10 - Retract";
+		case 11:
+			return "G11 - Unretract";
+		case 29:
+			return "G29 - Probe the bed";
+		case 80:
+			return "G80 - Cancel motion mode";
 		case 20:
 			return "G22 - Use inches";
 		case 21:
@@ -285,14 +307,20 @@ public final class GCommand extends Command {
 	 * Test the current opcode if it is known in this program.
 	 * @return True if we know how to handle it, false if we don't
 	 */
-	public static boolean validCode() {
+	public boolean validCode() {
 		switch(code) {
 		case 0:		// G0 - Move
 		case 1:		// G1 - Move
+		case 2:		// G2 - Clockwise arc
+		case 3:		// G3 - Counter-clockwise arc
 		case 4:		// G4 - Dwell
+		case 10:	// G10 - Retract
+		case 11:	// G11 - Unretract
 		case 20:	// G20 - Use inches
 		case 21:	// G21 - Use mm
 		case 28:	// G28 - Home
+		case 29:	// G29 - Probe the bed
+		case 80:	// G80 - Cancel motion mode
 		case 90:	// G90 - Use absolute positioning
 		case 91:	// G91 - Use relative positioning
 		case 92:	// G92 - Set axis position
@@ -307,17 +335,17 @@ public final class GCommand extends Command {
 	 * @param str A single line of G-code
 	 * @return
 	 */
-	protected static void parseArguments() {
+	protected void parseArguments() {
 		// Reset arguments
 		arg_X = arg_Y = arg_Z = arg_E = arg_F = arg_P = 0.0f;
 		has_X = has_Y = has_Z = has_E = has_F = has_P = false;
+		badArg = 0;
 		
 		state s = state.FIND_ARG;
 		
 		// Holders for the decoding of all commands
 		byte arg = '#';
 		int arg_start = -1;
-		float val;
 		
 		for(int i=0;i<buflen;i++) {
 			switch(s) {
@@ -334,26 +362,7 @@ public final class GCommand extends Command {
 				// Found a command, search for the arguments...
 				if(buf[i] == ' ' || buf[i] == '\t') {
 					// Found white space - thats the end of the argument
-					if(i == arg_start)
-						// No argument found
-						val = 0.0f;
-					else
-						// Parse whatever we have - can throw NumberFormatException
-						val = parseFloatFromCharBuf(arg_start, i);
-					
-					// Store the argument
-					switch(arg) {
-					case 'x': case 'X': has_X = true; arg_X = val; break;
-					case 'y': case 'Y': has_Y = true; arg_Y = val; break;
-					case 'z': case 'Z': has_Z = true; arg_Z = val; break;
-					case 'e': case 'E': has_E = true; arg_E = val; break;
-					case 'f': case 'F': has_F = true; arg_F = val; break;
-					case 'p': case 'P': has_P = true; arg_P = val; break;
-					case 'g': case 'G': /* The G-code itself - ignore it */; break;
-					default:
-						Log.e("parseArguments", "Invalid argument for G-code found: "+(char)arg);
-						break;
-					}
+					storeArgument(arg, arg_start, i);
 					
 					// Invalidate the mark
 					arg_start = -1;
@@ -364,22 +373,56 @@ public final class GCommand extends Command {
 		}
 		
 		// If arg_start is valid, we still have to process a part of the string
-		if(arg_start >= 0) {
-			val = parseFloatFromCharBuf(arg_start, buflen);
-			// Store the argument
-			switch(arg) {
-			case 'x': case 'X': has_X = true; arg_X = val; break;
-			case 'y': case 'Y': has_Y = true; arg_Y = val; break;
-			case 'z': case 'Z': has_Z = true; arg_Z = val; break;
-			case 'e': case 'E': has_E = true; arg_E = val; break;
-			case 'f': case 'F': has_F = true; arg_F = val; break;
-			case 'p': case 'P': has_P = true; arg_P = val; break;
-			default:
-				Log.e("parseArguments", "Invalid argument for G-code found: "+arg);
-				break;
-			}
-		}
+		if(arg_start >= 0) storeArgument(arg, arg_start, buflen);
 		
 		hasArgs = true;
 	}
+	
+	/**
+	 * Parse the value of one argument and store it. A value which is not a number is
+	 * remembered in badArg; so is a missing one, except for codes like G28 which use bare
+	 * letters as flags.
+	 */
+	private void storeArgument(byte arg, int start, int end) {
+		float val;
+		if(start == end) {
+			// No value, fine for flags only
+			val = 0.0f;
+			if(needsValues() && badArg == 0) badArg = arg;
+		} else {
+			if(!isNumber(buf, start, end) && badArg == 0) badArg = arg;
+			val = parseFloatFromCharBuf(start, end);
+		}
+		
+		switch(arg) {
+		case 'x': case 'X': has_X = true; arg_X = val; break;
+		case 'y': case 'Y': has_Y = true; arg_Y = val; break;
+		case 'z': case 'Z': has_Z = true; arg_Z = val; break;
+		case 'e': case 'E': has_E = true; arg_E = val; break;
+		case 'f': case 'F': has_F = true; arg_F = val; break;
+		case 'p': case 'P': has_P = true; arg_P = val; break;
+		case 'i': case 'I': case 'j': case 'J': case 'r': case 'R': /* Arc center or radius - not used */ break;
+		case 'g': case 'G': /* The G-code itself - ignore it */; break;
+		default:
+			Logger.e("parseArguments", "Invalid argument for G-code found: "+(char)arg);
+			break;
+		}
+	}
+	
+	/**
+	 * @return True if every argument of the current opcode must have a value
+	 */
+	private boolean needsValues() {
+		switch(code) {
+		case 0:
+		case 1:
+		case 2:
+		case 3:
+		case 4:
+		case 92:
+			return true;
+		default:
+			return false;
+		}
+	}
 }
@@ -0,0 +1,152 @@
+package nl.cyberwizzard.repdroid;
+
+import java.io.*;
+
+/**
+ * Result of indexing and validating a job: whether it is printable, some statistics and the
+ * layer index. It can be written next to the job as an index file, so a job only has to be
+ * scanned once and is ready to print as soon as it is loaded.
+ */
+public class JobStats {
+	static final int MAGIC = 0x52444958;	// "RDIX"
+	static final int VERSION = 1;
+
+	// Identity of the scanned file, used to tell if an index file is still up to date
+	public String path;
+	public long length = 0;
+	public long modified = 0;
+
+	// Validation
+	public boolean valid = true;
+	public String error = null;
+	public int errorLine = -1;
+
+	// Statistics
+	public int lines = 0;					// Lines in the file, including comments
+	public int gcodes = 0;
+	public int mcodes = 0;
+	public int moves = 0;					// G0-G3 commands
+	public int extrusions = 0;				// Moves which push out filament
+	public float filament = 0.0f;			// Total filament length in mm
+	public float minX = Float.NaN, maxX = Float.NaN;	// Bounds of the extruding moves
+	public float minY = Float.NaN, maxY = Float.NaN;
+	public float maxZ = Float.NaN;
+	public int layers = 0;
+	public LayerIndex root = new LayerIndex();
+
+	public JobStats(File file) {
+		path = file.getAbsolutePath();
+		length = file.length();
+		modified = file.lastModified();
+	}
+
+	private JobStats() {}
+
+	/**
+	 * @return True if these statistics were made from the current content of the file
+	 */
+	public boolean matches(File file) {
+		return path.equals(file.getAbsolutePath()) && length == file.length() && modified == file.lastModified();
+	}
+
+	/**
+	 * Widen the bounding box to include an extruding move ending at x, y, z.
+	 */
+	void include(float x, float y, float z) {
+		if(Float.isNaN(minX) || x < minX) minX = x;
+		if(Float.isNaN(maxX) || x > maxX) maxX = x;
+		if(Float.isNaN(minY) || y < minY) minY = y;
+		if(Float.isNaN(maxY) || y > maxY) maxY = y;
+		if(Float.isNaN(maxZ) || z > maxZ) maxZ = z;
+	}
+
+	/**
+	 * Write the statistics and the layer index to an index file.
+	 */
+	public void save(File out) throws IOException {
+		DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)));
+		try {
+			os.writeInt(MAGIC);
+			os.writeInt(VERSION);
+			os.writeUTF(path);
+			os.writeLong(length);
+			os.writeLong(modified);
+			os.writeBoolean(valid);
+			os.writeUTF(error == null ? "" : error);
+			os.writeInt(errorLine);
+			os.writeInt(lines);
+			os.writeInt(gcodes);
+			os.writeInt(mcodes);
+			os.writeInt(moves);
+			os.writeInt(extrusions);
+			os.writeFloat(filament);
+			os.writeFloat(minX);
+			os.writeFloat(maxX);
+			os.writeFloat(minY);
+			os.writeFloat(maxY);
+			os.writeFloat(maxZ);
+			os.writeInt(layers);
+			for(LayerIndex i = root.next; i != null; i = i.next) {
+				os.writeInt(i.offset);
+				os.writeFloat(i.z);
+			}
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Read an index file written by save().
+	 * @throws IOException When the file is unreadable or not an index file
+	 */
+	public static JobStats load(File in) throws IOException {
+		DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(in)));
+		try {
+			if(is.readInt() != MAGIC) throw new IOException("Not an index file: " + in);
+			if(is.readInt() != VERSION) throw new IOException("Unsupported index version: " + in);
+			JobStats s = new JobStats();
+			s.path = is.readUTF();
+			s.length = is.readLong();
+			s.modified = is.readLong();
+			s.valid = is.readBoolean();
+			s.error = is.readUTF();
+			if(s.error.length() == 0) s.error = null;
+			s.errorLine = is.readInt();
+			s.lines = is.readInt();
+			s.gcodes = is.readInt();
+			s.mcodes = is.readInt();
+			s.moves = is.readInt();
+			s.extrusions = is.readInt();
+			s.filament = is.readFloat();
+			s.minX = is.readFloat();
+			s.maxX = is.readFloat();
+			s.minY = is.readFloat();
+			s.maxY = is.readFloat();
+			s.maxZ = is.readFloat();
+			s.layers = is.readInt();
+			s.root = new LayerIndex();
+			LayerIndex last = s.root;
+			for(int n=0;n<s.layers;n++) {
+				LayerIndex i = new LayerIndex();
+				i.index = n+1;
+				i.offset = is.readInt();
+				i.z = is.readFloat();
+				i.prev = last;
+				last.next = i;
+				last = i;
+			}
+			return s;
+		} finally {
+			is.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		if(!valid)
+			return path + ": INVALID at line " + errorLine + ": " + error;
+		return path + ": " + lines + " lines, " + gcodes + " G / " + mcodes + " M codes, " + layers +
+				" layers, " + extrusions + "/" + moves + " extruding moves, filament " + filament +
+				"mm, X " + minX + ".." + maxX + " Y " + minY + ".." + maxY + " Z.." + maxZ;
+	}
+}
@@ -0,0 +1,79 @@
+package nl.cyberwizzard.repdroid;
+
+/**
+ * Small latency histogram with power-of-two microsecond buckets. Recording a value does not
+ * create objects, so it can be used inside the send loop for every command.
+ */
+public final class LatencyStats {
+	private static final int BUCKETS = 32;	// Bucket i holds values below 2^i us, the last one everything else
+
+	private final long buckets[] = new long[BUCKETS];
+	private long count = 0;
+	private long sum = 0;					// In ns
+	private long min = Long.MAX_VALUE;		// In ns
+	private long max = 0;					// In ns
+
+	/**
+	 * Record one measurement.
+	 * @param nanos Latency in nanoseconds
+	 */
+	public synchronized void record(long nanos) {
+		if(nanos < 0) nanos = 0;
+		long us = nanos / 1000;
+		int b = 0;
+		while(b < BUCKETS - 1 && us >= (1L << b)) b++;
+		buckets[b]++;
+		count++;
+		sum += nanos;
+		if(nanos < min) min = nanos;
+		if(nanos > max) max = nanos;
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return Average latency in ns, or 0 when nothing was recorded
+	 */
+	public synchronized long getMean() {
+		return count == 0 ? 0 : sum / count;
+	}
+
+	public synchronized long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	/**
+	 * Estimate a percentile from the histogram.
+	 * @param p Percentile between 0 and 100
+	 * @return Upper bound of the bucket holding the percentile, in ns
+	 */
+	public synchronized long getPercentile(double p) {
+		if(count == 0) return 0;
+		long target = (long)Math.ceil(count * p / 100.0);
+		if(target < 1) target = 1;
+		long seen = 0;
+		for(int b=0;b<BUCKETS;b++) {
+			seen += buckets[b];
+			if(seen >= target) return Math.min(max, (1L << b) * 1000);
+		}
+		return max;
+	}
+
+	public synchronized void reset() {
+		for(int b=0;b<BUCKETS;b++) buckets[b] = 0;
+		count = sum = max = 0;
+		min = Long.MAX_VALUE;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "n="+count+" mean="+(getMean()/1000)+"us p50="+(getPercentile(50)/1000)+"us p99="+
+				(getPercentile(99)/1000)+"us max="+(max/1000)+"us";
+	}
+}
@@ -0,0 +1,35 @@
+package nl.cyberwizzard.repdroid;
+
+/**
+ * Logging for the parser core. On Android this forwards to android.util.Log; on a plain
+ * JVM (headless pre-flight, test harnesses) android.util.Log is never touched and messages
+ * go to stderr instead.
+ */
+public final class Logger {
+	static final boolean ANDROID = "The Android Project".equals(System.getProperty("java.vendor"));
+
+	// Set to false on a plain JVM to only print warnings and errors
+	public static volatile boolean verbose = true;
+
+	private Logger() {}
+
+	public static void i(String tag, String msg) {
+		if(ANDROID) android.util.Log.i(tag, msg);
+		else if(verbose) System.err.println("I/" + tag + ": " + msg);
+	}
+
+	public static void w(String tag, String msg) {
+		if(ANDROID) android.util.Log.w(tag, msg);
+		else System.err.println("W/" + tag + ": " + msg);
+	}
+
+	public static void w(String tag, String msg, Throwable t) {
+		if(ANDROID) android.util.Log.w(tag, msg, t);
+		else System.err.println("W/" + tag + ": " + msg + ": " + t);
+	}
+
+	public static void e(String tag, String msg) {
+		if(ANDROID) android.util.Log.e(tag, msg);
+		else System.err.println("E/" + tag + ": " + msg);
+	}
+}
@@ -0,0 +1,276 @@
+package nl.cyberwizzard.repdroid;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+ * Headless pre-flight of print jobs: indexes, validates and gathers statistics for G-code
+ * files on a bounded worker pool and stores the result as an index file, so the jobs are
+ * ready to print the moment they are loaded. Runs on a plain JVM as well as on Android.
+ *
+ * At most 'threads' jobs are scanned at once and at most 'backlog' more wait in line;
+ * submit() blocks when both are used up, so feeding it a huge directory does not queue
+ * thousands of tasks. warmUp() is the opportunistic variant used to prepare the next job
+ * while the current one prints: it never blocks and simply skips when the pool is full.
+ *
+ * Only jobs which are queued or being scanned are kept in memory. Finished results are
+ * dropped right away; the index files are the cache.
+ */
+public class PreflightService {
+	static final String INDEX_SUFFIX = ".idx";
+
+	private final ThreadPoolExecutor executor;
+	private final Semaphore slots;				// Free places in the pool plus its queue
+	private final File indexDir;				// Where index files go, null for next to the job
+	// Jobs queued or being scanned, by absolute path
+	final ConcurrentHashMap<String, PreflightTask> pending = new ConcurrentHashMap<String, PreflightTask>();
+
+	/**
+	 * Scan of a single job. Once done it leaves the pending map, whether it finished, failed
+	 * or was cancelled. Its slot is freed when it leaves the executor: after it ran, or right
+	 * away when it is cancelled while still queued.
+	 */
+	private class PreflightTask extends FutureTask<JobStats> {
+		final String key;
+
+		PreflightTask(final File job) {
+			super(new Callable<JobStats>() {
+				public JobStats call() throws Exception {
+					return preflight(job);
+				}
+			});
+			key = job.getAbsolutePath();
+		}
+
+		@Override
+		public void run() {
+			try {
+				super.run();
+			} finally {
+				slots.release();
+			}
+		}
+
+		@Override
+		protected void done() {
+			pending.remove(key, this);
+			// Taken out of the queue means run() never happens; otherwise it frees the slot
+			if(isCancelled() && executor.remove(this)) slots.release();
+		}
+	}
+
+	/**
+	 * @param threads Number of jobs scanned in parallel
+	 * @param backlog Number of jobs allowed to wait for a worker before submit() blocks
+	 * @param indexDir Directory for the index files, or null to store them next to each job
+	 */
+	public PreflightService(int threads, int backlog, File indexDir) {
+		// A task frees its slot at the end of run(), before its worker takes the next one from
+		// the queue, so the queue must be able to hold every slot or a submit() racing with that
+		// worker gets rejected
+		int size = threads + Math.max(1, backlog);
+		executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(size));
+		slots = new Semaphore(size);
+		this.indexDir = indexDir;
+	}
+
+	/**
+	 * Queue a job for pre-flight, blocking while the pool and its queue are full. If the job
+	 * is already queued or being scanned, that scan is returned instead; a job with an up to
+	 * date index file is only loaded, not scanned again.
+	 */
+	public Future<JobStats> submit(File job) throws InterruptedException {
+		Future<JobStats> f = pending.get(job.getAbsolutePath());
+		if(f != null) return f;
+		slots.acquire();
+		return enqueue(job);
+	}
+
+	/**
+	 * Queue a job for pre-flight if there is room right now, for example the next job of a
+	 * printer while it is still busy with the current one.
+	 * @return The pending result, or null if the pool was too busy to take it
+	 */
+	public Future<JobStats> warmUp(File job) {
+		Future<JobStats> f = pending.get(job.getAbsolutePath());
+		if(f != null) return f;
+		if(!slots.tryAcquire()) return null;
+		return enqueue(job);
+	}
+
+	/**
+	 * Queue all G-code files in a directory, in name order.
+	 */
+	public ArrayList<Future<JobStats>> submitDirectory(File dir) throws InterruptedException {
+		File files[] = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File d, String name) {
+				String n = name.toLowerCase();
+				return n.endsWith(".gcode") || n.endsWith(".gco") || n.endsWith(".g");
+			}
+		});
+		ArrayList<Future<JobStats>> res = new ArrayList<Future<JobStats>>();
+		if(files == null) return res;
+		Arrays.sort(files);
+		for(File f : files) res.add(submit(f));
+		return res;
+	}
+
+	/**
+	 * Get the pre-flight result of a job from its index file, without waiting.
+	 * @return The result or null if there is no up to date index file
+	 */
+	public JobStats lookup(File job) {
+		return loadIndex(job);
+	}
+
+	/**
+	 * Get the pre-flight result of a job, waiting for its scan to finish if one is queued or
+	 * running (for example a warm-up).
+	 * @return The result or null if the job was not scanned and has no up to date index file
+	 */
+	public JobStats await(File job) throws InterruptedException {
+		Future<JobStats> f = pending.get(job.getAbsolutePath());
+		if(f != null) {
+			try {
+				JobStats s = f.get();
+				if(s.matches(job)) return s;
+			} catch (ExecutionException e) {
+				// Failed, fall through to the index file
+			} catch (CancellationException e) {
+				// Same
+			}
+		}
+		return loadIndex(job);
+	}
+
+	/**
+	 * @return The location of the index file of a job. In a shared index directory the name
+	 * includes a hash of the full path, so jobs with the same name in different directories
+	 * get their own file.
+	 */
+	public File indexFileFor(File job) {
+		if(indexDir == null) return new File(job.getAbsoluteFile().getParentFile(), job.getName() + INDEX_SUFFIX);
+		String hash = Integer.toHexString(job.getAbsolutePath().hashCode());
+		return new File(indexDir, job.getName() + "-" + hash + INDEX_SUFFIX);
+	}
+
+	/**
+	 * Stop accepting jobs; jobs already queued are finished.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+		return executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Register and start a scan. The caller holds a slot, which is given back if another
+	 * caller registered the same job first.
+	 */
+	private Future<JobStats> enqueue(File job) {
+		PreflightTask task = new PreflightTask(job);
+		PreflightTask other = pending.putIfAbsent(task.key, task);
+		if(other != null) {
+			slots.release();
+			return other;
+		}
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// Wakes anybody already waiting on it; it never entered the queue, so free its slot here
+			task.cancel(false);
+			slots.release();
+			throw e;
+		}
+		return task;
+	}
+
+	/**
+	 * Scan a single job, unless its index file is still up to date.
+	 */
+	JobStats preflight(File job) throws Exception {
+		JobStats s = loadIndex(job);
+		if(s != null) return s;
+
+		PrintSession session = new PrintSession(job.getName(), job);
+		try {
+			session.open();
+			s = session.indexFile();
+		} finally {
+			session.close();
+		}
+		try {
+			s.save(indexFileFor(job));
+		} catch (IOException e) {
+			Logger.w("preflight", "Could not write index for " + job, e);
+		}
+		return s;
+	}
+
+	private JobStats loadIndex(File job) {
+		File idx = indexFileFor(job);
+		if(!idx.exists()) return null;
+		try {
+			JobStats s = JobStats.load(idx);
+			if(s.matches(job)) return s;
+		} catch (IOException e) {
+			Logger.w("loadIndex", "Ignoring index " + idx, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Usage: PreflightService [-j threads] [-o indexdir] dir-or-file...
+	 * Exits with status 1 if any job is invalid or could not be scanned.
+	 */
+	public static void main(String[] args) throws Exception {
+		System.exit(run(args));
+	}
+
+	/**
+	 * Pre-flight the jobs named on the command line and print the results.
+	 * @return The exit status: 0 if all jobs are valid, 1 if not, 2 for bad usage
+	 */
+	static int run(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		File out = null;
+		ArrayList<File> inputs = new ArrayList<File>();
+		for(int i=0;i<args.length;i++) {
+			if(args[i].equals("-j") && i+1 < args.length) threads = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-o") && i+1 < args.length) out = new File(args[++i]);
+			else inputs.add(new File(args[i]));
+		}
+		if(inputs.isEmpty()) {
+			System.err.println("Usage: PreflightService [-j threads] [-o indexdir] dir-or-file...");
+			return 2;
+		}
+		if(out != null) out.mkdirs();
+
+		Logger.verbose = false;
+		PreflightService service = new PreflightService(threads, threads * 2, out);
+		ArrayList<Future<JobStats>> results = new ArrayList<Future<JobStats>>();
+		for(File f : inputs) {
+			if(f.isDirectory()) results.addAll(service.submitDirectory(f));
+			else results.add(service.submit(f));
+		}
+		service.shutdown();
+
+		boolean ok = true;
+		for(Future<JobStats> f : results) {
+			try {
+				JobStats s = f.get();
+				System.out.println(s);
+				ok &= s.valid;
+			} catch (ExecutionException e) {
+				System.out.println("FAILED: " + e.getCause().getMessage());
+				ok = false;
+			}
+		}
+		return ok ? 0 : 1;
+	}
+}
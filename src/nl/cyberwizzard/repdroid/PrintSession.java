@@ -0,0 +1,578 @@
+package nl.cyberwizzard.repdroid;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A single print job: the G-code file, its read buffers, the layer index and the state of
+ * the stream to the printer. Every printer gets its own session so several jobs can run in
+ * one process; the work is done in small slices on the shared executor of a PrinterHost.
+ */
+public class PrintSession {
+	public enum State {IDLE, INDEXING, PRINTING, DONE, FAILED};
+
+	static final int BLOCK_SIZE = 512*1024;	// Bytes read from the file at once
+	static final int INDEX_SLICE = 2000;		// Lines indexed per slice before yielding
+	static final int SEND_SLICE = 32;			// Commands sent per slice before yielding
+	static final long ACK_TIMEOUT = 30000;		// Default ms to wait for an "ok"
+
+	final String name;
+	final File file;						// File holding the Gcode
+	RandomAccessFile is = null;				// Input stream from the Gcode file
+	FileChannel channel = null;				// Direct channel access to the file
+	ByteBuffer bbuf = null;					// Buffer to fill with bytes from the file
+	byte bbuf_bytes[] = null;				// Handle to the content of bbuf
+	int ptr = 0;							// Pointer to the last byte used in bbuf_bytes
+	int ptr_offset = 0;						// Offset + ptr = position in file
+	int bbuf_size = 0;						// Maximum position in the current byte buffer
+	JobStats stats;							// Validation result, statistics and layer index
+	LayerIndex currentLayer;				// Pointer to the current layer
+	boolean indexed = false;				// True once the whole file was scanned
+	// Keep track of layer changes when the Z axis moves by holding on to that
+	float lastZ = -999.0f;
+
+	// Line currently read from the file and the parser for it
+	final byte line[] = new byte[128];
+	int linelen = 0;
+	final GCommand gcode = new GCommand();
+	// Position while scanning, to compute the statistics
+	float posX = 0.0f, posY = 0.0f, posZ = 0.0f, posE = 0.0f;
+	boolean relative = false, relativeE = false;
+
+	// Stream state towards the printer
+	private volatile State state = State.IDLE;
+	private PrinterConnection connection = null;
+	private final ResponseParser responses = new ResponseParser(new TelemetryBuffer(1024));
+	private final byte rxbuf[] = new byte[256];	// Bytes received but not yet parsed
+	private int rxlen = 0;
+	private final byte txbuf[] = new byte[129];	// Last command sent, kept for resends
+	private int txlen = 0;
+	private boolean awaitingOk = false;
+	private boolean skipOk = false;			// Marlin follows "Resend:" with an "ok" which is not ours
+	private boolean skippedOk = false;		// An "ok" was skipped since the last transmit
+	private long sentAt = 0;
+	private long heardAt = 0;				// Last sign the pending command is being worked on
+	private long ackTimeout = ACK_TIMEOUT * 1000000L;	// ns, 0 to wait forever
+	private volatile long sent = 0;			// Number of commands acknowledged
+	private volatile long printStart = 0, printEnd = 0;
+
+	// Per printer metrics
+	final LatencyStats ackLatency = new LatencyStats();		// Command sent until "ok"
+	final LatencyStats queueLatency = new LatencyStats();	// Slice scheduled until it ran
+
+	public PrintSession(String name, File file) {
+		this.name = name;
+		this.file = file;
+		stats = new JobStats(file);
+		currentLayer = stats.root;
+	}
+
+	/**
+	 * Open the G-code file and fill the first buffer.
+	 */
+	public void open() throws Exception {
+		Logger.i("OpenFile", "Attempting to open " + file.getAbsolutePath());
+		if(!file.exists()) {
+			Logger.w("OpenFile", "File " + file.getAbsolutePath() + " does not exist");
+			throw new Exception("File " + file.getAbsolutePath() + " does not exist");
+		}
+		if(!file.canRead()) {
+			Logger.w("OpenFile", "File " + file.getAbsolutePath() + " is unreadable");
+			throw new Exception("File " + file.getAbsolutePath() + " is unreadable");
+		}
+
+		try {
+			is = new RandomAccessFile(file, "r");
+			channel = is.getChannel();
+			bbuf = ByteBuffer.allocate(BLOCK_SIZE);
+			bbuf_bytes = bbuf.array();
+			seek(0);
+		} catch (IOException e) {
+			Logger.w("OpenFile", "Error reading " + file.getName(), e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Close the file and with it, all the buffers and streams.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if(is!=null) {
+			is.close();
+			is = null;
+			channel = null;
+		}
+		if(connection != null) {
+			connection.close();
+			connection = null;
+		}
+	}
+
+	/**
+	 * Move the read position to a byte offset in the file, for example the start of a layer.
+	 */
+	void seek(int offset) throws IOException {
+		channel.position(offset);
+		ptr_offset = offset;
+		bbuf_size = 0;
+		fetchBlock();
+	}
+
+	private void fetchBlock() throws IOException {
+		// Move the offset past the block we just used up
+		if(bbuf_size > 0) ptr_offset += bbuf_size;
+		// Load a new block of data from the file
+		bbuf.clear();
+		bbuf_size = channel.read(bbuf);
+		// Reset the pointer
+		ptr = 0;
+	}
+
+	/**
+	 * Read the next line from the file into 'line', dropping carriage returns, leading
+	 * spaces and comments.
+	 * @return True if a line was read, false at EOF or when a line is too long
+	 */
+	boolean readLine() throws IOException {
+		linelen = 0;
+		// Test if we reached EOF
+		if(bbuf_size <= 0) return false;	// No more bytes, no more lines
+		if(ptr >= bbuf_size) {
+			fetchBlock();
+			if(bbuf_size <= 0) return false;
+		}
+
+		boolean comment = false;
+		while(true) {
+			// If we used all bytes from the file block, load more bytes from the file
+			if(ptr >= bbuf_size) {
+				fetchBlock();
+				if(bbuf_size <= 0) break;
+			}
+			byte c = bbuf_bytes[ptr++];
+			if(c == '\n') break;						// Break when the line ends
+			if(comment || c == '\r') continue;			// Swallow comments and carriage return
+			if(c == ';') {
+				comment = true;
+				continue;
+			}
+			if(c == ' ' && linelen == 0) continue;		// Swallow leading spaces
+			// When a line is too long, abort
+			if(linelen == line.length - 1) {
+				fail("Line too long", stats.lines + 1);
+				return false;
+			}
+			line[linelen++] = c;
+		}
+		// Drop white space left in front of a comment
+		while(linelen > 0 && (line[linelen-1] == ' ' || line[linelen-1] == '\t')) linelen--;
+		return true;
+	}
+
+	/**
+	 * To validate the file, we scan it line by line and parse G and M codes to
+	 * test if we think it is a valid job. At the same time, we can index the layers
+	 * in the file and gather the statistics.
+	 * @return True while valid lines are read or false upon errors or EOF
+	 */
+	boolean parseLine() {
+		// Preserve the current location so we know where this line started
+		int ptr_history = ptr_offset+ptr;
+
+		try {
+			if(!readLine()) return false;
+		} catch (IOException e) {
+			fail(e.getMessage(), stats.lines + 1);
+			return false;
+		}
+		stats.lines++;
+		if(linelen == 0) return true;
+
+		// Determine the type of the command
+		byte cmd = line[0];
+		switch(cmd) {
+		case 'g':
+		case 'G':
+			// G-code
+			try {
+				gcode.setData(line,linelen);
+				if(!gcode.validCode()) {
+					// Well formed but not known here - the firmware may well support it
+					Logger.w("parseLine", name+": line "+stats.lines+": unknown G-code passed on as is: "+
+							new String(line, 0, linelen));
+				}
+				stats.gcodes++;
+				switch(gcode.code) {
+				case 0:
+				case 1:
+				case 2:
+				case 3:
+					// Trigger the parsing of the command to find if the Z axis moved
+					parseArguments();
+					move(ptr_history);
+					break;
+				case 4:
+					parseArguments();
+					break;
+				case 90: relative = relativeE = false; break;
+				case 91: relative = relativeE = true; break;
+				case 92:
+					parseArguments();
+					if(gcode.has_X) posX = gcode.arg_X;
+					if(gcode.has_Y) posY = gcode.arg_Y;
+					if(gcode.has_Z) posZ = gcode.arg_Z;
+					if(gcode.has_E) posE = gcode.arg_E;
+					break;
+				}
+			} catch (Exception e) {
+				fail(e.getMessage(), stats.lines);
+				return false;
+			}
+			break;
+		case 'm':
+		case 'M':
+			// M-code - only the extruder mode matters for the statistics
+			if(linelen < 2 || line[1] < '0' || line[1] > '9') {
+				fail("Malformed M-code: " + new String(line, 0, linelen), stats.lines);
+				return false;
+			}
+			stats.mcodes++;
+			switch(Command.parseIntFromCharBuf(line, 1, linelen)) {
+			case 82: relativeE = false; break;
+			case 83: relativeE = true; break;
+			}
+			break;
+		case 't':
+		case 'T':
+			// Tool change
+			if(linelen < 2 || line[1] < '0' || line[1] > '9') {
+				fail("Malformed tool change: " + new String(line, 0, linelen), stats.lines);
+				return false;
+			}
+			break;
+		case 'n':
+		case 'N':
+			// Line numbered by the slicer, sent as is
+			break;
+		default:
+			fail("Unknown command: " + new String(line, 0, linelen), stats.lines);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Parse the arguments of the current G-code, refusing values which are not numbers.
+	 */
+	private void parseArguments() throws Exception {
+		gcode.parseArguments();
+		if(gcode.badArg != 0)
+			throw new Exception("Malformed value for " + (char)gcode.badArg + ": " + new String(line, 0, linelen));
+	}
+
+	/**
+	 * Account for a G0-G3 move in the layer index and statistics.
+	 * @param offset Offset in the file of the line holding the move
+	 */
+	private void move(int offset) {
+		stats.moves++;
+		if(gcode.has_Z && gcode.arg_Z != lastZ) {
+			// New layer
+			LayerIndex i = new LayerIndex();
+			i.prev = currentLayer;
+			i.index = currentLayer.index+1;
+			i.offset = offset;
+			i.z = relative ? posZ + gcode.arg_Z : gcode.arg_Z;
+			currentLayer.next = i;
+			// Update the pointer
+			currentLayer = i;
+			stats.layers = i.index;
+			// Preserve whatever Z we just found
+			lastZ = gcode.arg_Z;
+		}
+
+		if(gcode.has_X) posX = relative ? posX + gcode.arg_X : gcode.arg_X;
+		if(gcode.has_Y) posY = relative ? posY + gcode.arg_Y : gcode.arg_Y;
+		if(gcode.has_Z) posZ = relative ? posZ + gcode.arg_Z : gcode.arg_Z;
+		if(gcode.has_E) {
+			float delta = relativeE ? gcode.arg_E : gcode.arg_E - posE;
+			posE = relativeE ? posE + gcode.arg_E : gcode.arg_E;
+			if(delta > 0.0f) {
+				stats.filament += delta;
+				stats.extrusions++;
+				stats.include(posX, posY, posZ);
+			}
+		}
+	}
+
+	/**
+	 * Mark the job as invalid, remembering what went wrong on which line.
+	 */
+	private void fail(String error, int lineNo) {
+		stats.valid = false;
+		stats.error = error;
+		stats.errorLine = lineNo;
+		Logger.e("parseLine", name + ": line " + stats.errorLine + ": " + stats.error);
+	}
+
+	/**
+	 * Index the whole file in one go on the calling thread.
+	 * @return The validation result and statistics
+	 */
+	public JobStats indexFile() {
+		Logger.i("indexFile","Indexing "+name);
+		while(parseLine());
+		indexed = true;
+		Logger.i("indexFile","Parsed "+stats.lines+" lines");
+
+		LayerIndex i = stats.root;
+		while(i.next != null) {
+			i = i.next;
+			Logger.i("indexFile","Layer "+i.index+" @ "+i.offset);
+		}
+		return stats;
+	}
+
+	/**
+	 * Use a layer index made earlier, for example by the PreflightService, instead of
+	 * scanning the file again.
+	 * @param s Statistics of this very file
+	 * @throws IllegalArgumentException When the statistics belong to another (version of the) file
+	 */
+	public void useIndex(JobStats s) {
+		if(!s.matches(file)) throw new IllegalArgumentException("Index does not match " + file);
+		stats = s;
+		currentLayer = s.root;
+		while(currentLayer.next != null) currentLayer = currentLayer.next;
+		indexed = true;
+	}
+
+	/**
+	 * Set how long to wait for the printer to acknowledge a command. Waiting for the printer
+	 * to heat up or home is fine as long as it reports "busy" or temperatures meanwhile.
+	 * @param ms Timeout in ms, 0 to wait forever
+	 */
+	public void setAckTimeout(long ms) {
+		ackTimeout = ms * 1000000L;
+	}
+
+	/**
+	 * Index and then print the file on the given connection. The actual work happens on the
+	 * executor of the host.
+	 */
+	public void print(PrinterHost host, PrinterConnection connection) throws IOException {
+		this.connection = connection;
+		if(indexed) {
+			startPrinting();
+		} else {
+			state = State.INDEXING;
+		}
+		host.schedule(this, true);
+	}
+
+	/**
+	 * Rewind the file and start sending, unless the scan found the job to be invalid.
+	 */
+	private void startPrinting() throws IOException {
+		if(!stats.valid) {
+			Logger.e("print", name+": not printing invalid job: "+stats.error);
+			state = State.FAILED;
+			return;
+		}
+		seek(0);
+		state = State.PRINTING;
+		printStart = System.nanoTime();
+	}
+
+	/**
+	 * Do a bounded amount of work. Called by the PrinterHost, never by two threads at once.
+	 * @return True if progress was made, false if we are waiting on the printer
+	 */
+	boolean runSlice() {
+		try {
+			switch(state) {
+			case INDEXING:
+				for(int n=0;n<INDEX_SLICE;n++) {
+					if(!parseLine()) {
+						// Done indexing - rewind and start sending
+						indexed = true;
+						Logger.i("runSlice", name+": indexed "+stats.lines+" lines, "+stats.layers+" layers");
+						startPrinting();
+						break;
+					}
+				}
+				return true;
+			case PRINTING:
+				return sendSlice();
+			default:
+				return false;
+			}
+		} catch (IOException e) {
+			abort(e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Stop the job after an error it can not recover from.
+	 */
+	void abort(String reason) {
+		Logger.e("abort", name+": "+reason);
+		state = State.FAILED;
+	}
+
+	/**
+	 * Send commands until the printer stops acknowledging them or the slice is used up.
+	 */
+	private boolean sendSlice() throws IOException {
+		boolean progress = false;
+		for(int n=0;n<SEND_SLICE;n++) {
+			if(awaitingOk) {
+				receive();
+				if(awaitingOk) {
+					checkAckTimeout();
+					return progress;
+				}
+			}
+			// Fetch the next command, skipping empty and comment lines
+			do {
+				if(!readLine()) {
+					state = stats.valid ? State.DONE : State.FAILED;
+					printEnd = System.nanoTime();
+					Logger.i("sendSlice", name+": done, "+sent+" commands, ack "+ackLatency);
+					return true;
+				}
+			} while(linelen == 0);
+			System.arraycopy(line, 0, txbuf, 0, linelen);
+			txbuf[linelen] = '\n';
+			txlen = linelen + 1;
+			transmit();
+			progress = true;
+		}
+		return progress;
+	}
+
+	private void transmit() throws IOException {
+		connection.write(txbuf, 0, txlen);
+		sentAt = heardAt = System.nanoTime();
+		awaitingOk = true;
+		skippedOk = false;
+	}
+
+	/**
+	 * Give up on an "ok" which is overdue.
+	 */
+	private void checkAckTimeout() throws IOException {
+		if(ackTimeout <= 0 || System.nanoTime() - heardAt < ackTimeout) return;
+		if(skippedOk) {
+			// The firmware did not send an extra "ok" after "Resend:", so the one we skipped
+			// was for the re-sent command
+			Logger.w("checkAckTimeout", name+": no second ok after resend, assuming the command was done");
+			ackLatency.record(System.nanoTime() - sentAt);
+			sent++;
+			awaitingOk = false;
+			return;
+		}
+		// Sending it again could run it twice, so stop
+		throw new IOException("No ok from printer within " + (ackTimeout / 1000000L) + " ms");
+	}
+
+	/**
+	 * Process everything the printer sent back so far.
+	 */
+	private void receive() throws IOException {
+		int r = connection.read(rxbuf, rxlen, rxbuf.length - rxlen);
+		if(r < 0) throw new IOException("Connection closed");
+		rxlen += r;
+
+		int start = 0;
+		for(int i=0;i<rxlen;i++) {
+			if(rxbuf[i] != '\n') continue;
+			switch(responses.parse(rxbuf, start, i - start)) {
+			case OK:
+				if(skipOk) {
+					// The "ok" belonging to the Resend line, the re-sent command is still pending
+					skipOk = false;
+					skippedOk = true;
+				} else if(awaitingOk) {
+					ackLatency.record(System.nanoTime() - sentAt);
+					sent++;
+					awaitingOk = false;
+				}
+				break;
+			case RESEND:
+				// We do not number lines, so the only candidate is the last command
+				Logger.w("receive", name+": resend requested");
+				transmit();
+				skipOk = true;
+				break;
+			case ERROR:
+				Logger.w("receive", name+": "+new String(rxbuf, start, i - start));
+				break;
+			case BUSY:
+				heardAt = System.nanoTime();
+				break;
+			default:
+				// Temperatures reported while waiting for M109 or M190
+				if(responses.hasTemperature()) heardAt = System.nanoTime();
+			}
+			start = i + 1;
+		}
+		// Keep the incomplete tail for next time
+		if(start > 0) {
+			System.arraycopy(rxbuf, start, rxbuf, 0, rxlen - start);
+			rxlen -= start;
+		} else if(rxlen == rxbuf.length) {
+			// Line longer than the buffer - throw it away
+			rxlen = 0;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public LayerIndex getRootLayer() {
+		return stats.root;
+	}
+
+	public JobStats getStats() {
+		return stats;
+	}
+
+	public TelemetryBuffer getTelemetry() {
+		return responses.getTelemetry();
+	}
+
+	public LatencyStats getAckLatency() {
+		return ackLatency;
+	}
+
+	public LatencyStats getQueueLatency() {
+		return queueLatency;
+	}
+
+	/**
+	 * @return Number of commands acknowledged by the printer so far
+	 */
+	public long getSent() {
+		return sent;
+	}
+
+	/**
+	 * @return Commands per second since printing started
+	 */
+	public double getSendRate() {
+		if(printStart == 0) return 0.0;
+		long end = printEnd != 0 ? printEnd : System.nanoTime();
+		if(end <= printStart) return 0.0;
+		return sent * 1e9 / (end - printStart);
+	}
+}
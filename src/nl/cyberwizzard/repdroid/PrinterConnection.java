@@ -0,0 +1,24 @@
+package nl.cyberwizzard.repdroid;
+
+import java.io.IOException;
+
+/**
+ * Link to a single printer. Implementations must not block in read(): the send loops of
+ * all printers share a few threads, so a printer which is still busy should simply return
+ * zero bytes and the loop will come back later.
+ */
+public interface PrinterConnection {
+	/**
+	 * Send bytes to the printer.
+	 */
+	public void write(byte[] buf, int off, int len) throws IOException;
+
+	/**
+	 * Fetch whatever the printer sent back so far, without waiting for more.
+	 * @return Number of bytes copied into buf, 0 if nothing is available or -1 when the
+	 * connection is closed
+	 */
+	public int read(byte[] buf, int off, int len) throws IOException;
+
+	public void close() throws IOException;
+}
@@ -0,0 +1,161 @@
+package nl.cyberwizzard.repdroid;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives any number of PrintSessions from a small shared thread pool.
+ *
+ * Sessions never get a thread of their own. Each one runs a bounded slice of work (some
+ * lines of indexing or a few commands) and is then queued again behind everybody else, so
+ * the pool visits the printers round robin. A big index build or a slow file read can only
+ * delay another printer by a single slice. A session which is waiting for its printer to
+ * answer is polled again after POLL_INTERVAL instead of spinning.
+ */
+public class PrinterHost {
+	static final long POLL_INTERVAL = 500000;	// ns between polls of a printer that is busy
+	static final long SHUTDOWN_WAIT = 1000;		// ms to let running slices end on shutdown
+
+	private final ScheduledThreadPoolExecutor executor;
+	private final ArrayList<PrintSession> sessions = new ArrayList<PrintSession>();
+	private volatile PreflightService preflight = null;
+
+	/**
+	 * @param threads Number of worker threads shared by all printers
+	 */
+	public PrinterHost(int threads) {
+		executor = new ScheduledThreadPoolExecutor(threads);
+	}
+
+	/**
+	 * Use a PreflightService to skip indexing of jobs it already scanned. start() waits for
+	 * a scan of the job which is still running, such as a warm-up, instead of scanning again.
+	 */
+	public void setPreflight(PreflightService preflight) {
+		this.preflight = preflight;
+	}
+
+	/**
+	 * Open, index and print a job on the given printer.
+	 */
+	public void start(PrintSession session, PrinterConnection connection) throws Exception {
+		start(session, connection, null);
+	}
+
+	/**
+	 * Open, index and print a job on the given printer, and prepare the job which will
+	 * follow it on that printer while this one prints.
+	 * @param next Job queued after this one, or null
+	 */
+	public void start(PrintSession session, PrinterConnection connection, File next) throws Exception {
+		session.open();
+		synchronized(sessions) {
+			sessions.add(session);
+		}
+		try {
+			if(preflight != null) {
+				JobStats s = preflight.await(session.file);
+				if(s != null) session.useIndex(s);
+			}
+			session.print(this, connection);
+		} catch (Exception e) {
+			// Not scheduled, so nobody else will clean up after it
+			finish(session);
+			throw e;
+		}
+		if(preflight != null && next != null) preflight.warmUp(next);
+	}
+
+	/**
+	 * Queue the next slice of a session. Slices with the same due time run in the order
+	 * they were queued, which is what makes the scheduling fair.
+	 * @param progress True to run again right away, false to wait for the printer first
+	 */
+	void schedule(final PrintSession session, boolean progress) {
+		final long delay = progress ? 0 : POLL_INTERVAL;
+		final long queued = System.nanoTime();
+		try {
+			executor.schedule(new Runnable() {
+				public void run() {
+					session.queueLatency.record(System.nanoTime() - queued - delay);
+					boolean p;
+					try {
+						p = session.runSlice();
+					} catch (RuntimeException e) {
+						// The executor would swallow this and the session would never finish
+						session.abort(e.toString());
+						p = false;
+					}
+					PrintSession.State s = session.getState();
+					if(s == PrintSession.State.INDEXING || s == PrintSession.State.PRINTING)
+						schedule(session, p);
+					else
+						finish(session);
+				}
+			}, delay, TimeUnit.NANOSECONDS);
+		} catch (java.util.concurrent.RejectedExecutionException e) {
+			Logger.w("schedule", "Host shut down, dropping " + session.getName());
+			session.abort("host shut down");
+			finish(session);
+		}
+	}
+
+	private void finish(PrintSession session) {
+		try {
+			session.close();
+		} catch (IOException e) {
+			Logger.w("finish", "Error closing " + session.getName(), e);
+		}
+		synchronized(sessions) {
+			sessions.remove(session);
+			sessions.notifyAll();
+		}
+	}
+
+	/**
+	 * @return A copy of the list of running sessions
+	 */
+	public ArrayList<PrintSession> getSessions() {
+		synchronized(sessions) {
+			return new ArrayList<PrintSession>(sessions);
+		}
+	}
+
+	/**
+	 * Wait until all sessions are done or the timeout expires.
+	 * @return True if all sessions finished
+	 */
+	public boolean awaitIdle(long timeoutMs) throws InterruptedException {
+		long until = System.currentTimeMillis() + timeoutMs;
+		synchronized(sessions) {
+			while(!sessions.isEmpty()) {
+				long left = until - System.currentTimeMillis();
+				if(left <= 0) return false;
+				sessions.wait(left);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stop all printers. Slices which are running are given a moment to end; every session
+	 * still registered is then failed and closed, so awaitIdle() returns right away.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(SHUTDOWN_WAIT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for(PrintSession session : getSessions()) {
+			PrintSession.State s = session.getState();
+			if(s != PrintSession.State.DONE && s != PrintSession.State.FAILED)
+				session.abort("host shut down");
+			finish(session);
+		}
+	}
+}
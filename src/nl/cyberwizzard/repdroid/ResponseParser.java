@@ -0,0 +1,293 @@
+package nl.cyberwizzard.repdroid;
+
+/**
+ * Parser for the lines the firmware sends back while printing: "ok", "wait", "busy:",
+ * "Resend:", errors and temperature or position reports.
+ *
+ * The parser works directly on the received bytes and reuses the number parsing from
+ * Command, so handling a line does not create any objects. Temperatures and positions
+ * are written into a TelemetryBuffer. One parser instance belongs to one printer connection
+ * and must only be fed from a single thread.
+ */
+public final class ResponseParser {
+	public enum Type {NONE, OK, WAIT, BUSY, RESEND, ERROR, START, OTHER};
+
+	// Prefixes to recognize, compared ignoring case
+	private static final byte[] OK = {'o', 'k'};
+	private static final byte[] WAIT = {'w', 'a', 'i', 't'};
+	private static final byte[] BUSY = {'b', 'u', 's', 'y'};
+	private static final byte[] ECHO = {'e', 'c', 'h', 'o', ':'};
+	private static final byte[] RESEND = {'r', 'e', 's', 'e', 'n', 'd'};
+	private static final byte[] RS = {'r', 's', ' '};
+	private static final byte[] ERROR = {'e', 'r', 'r', 'o', 'r'};
+	private static final byte[] ERROR_ALT = {'!', '!'};
+	private static final byte[] START = {'s', 't', 'a', 'r', 't'};
+	private static final byte[] COUNT = {'c', 'o', 'u', 'n', 't'};
+
+	private final TelemetryBuffer telemetry;
+
+	// Result of the last parsed line
+	private Type type = Type.NONE;
+	private int resendLine = -1;
+	private boolean hasTemperature = false, hasPosition = false;
+
+	// Last known values, carried over into samples which do not report them
+	private float hotend = Float.NaN, hotendTarget = Float.NaN, bed = Float.NaN, bedTarget = Float.NaN;
+	private float posX = Float.NaN, posY = Float.NaN, posZ = Float.NaN, posE = Float.NaN;
+
+	// Scratch holders for the line being parsed
+	private float t, tTarget, t0, t0Target, b, bTarget, x, y, z, e;
+	private boolean has_T, has_T0, has_B, has_X, has_Y, has_Z, has_E;
+	// End of the number last parsed by parseValue() and the target found by parseTarget()
+	private int valueEnd;
+	private float targetValue;
+
+	public ResponseParser(TelemetryBuffer telemetry) {
+		this.telemetry = telemetry;
+	}
+
+	public TelemetryBuffer getTelemetry() {
+		return telemetry;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Line number the firmware asked for in the last "Resend:" line, or -1.
+	 */
+	public int getResendLine() {
+		return resendLine;
+	}
+
+	/**
+	 * @return True if the last line held a temperature report
+	 */
+	public boolean hasTemperature() {
+		return hasTemperature;
+	}
+
+	/**
+	 * @return True if the last line held a position report
+	 */
+	public boolean hasPosition() {
+		return hasPosition;
+	}
+
+	public float getHotend() { return hotend; }
+	public float getHotendTarget() { return hotendTarget; }
+	public float getBed() { return bed; }
+	public float getBedTarget() { return bedTarget; }
+
+	/**
+	 * Parse one line, using the current time as timestamp for any telemetry in it.
+	 * @see #parse(byte[], int, int, long)
+	 */
+	public Type parse(byte[] line, int off, int len) {
+		return parse(line, off, len, System.nanoTime());
+	}
+
+	/**
+	 * Parse one line received from the firmware. Trailing line endings are ignored.
+	 * @param line Buffer holding the received bytes
+	 * @param off Start of the line in the buffer
+	 * @param len Number of bytes in the line
+	 * @param timestamp Time stamp stored with telemetry found in this line
+	 * @return The type of the line
+	 */
+	public Type parse(byte[] line, int off, int len, long timestamp) {
+		int end = off + len;
+		// Skip leading white space and trailing line endings
+		while(off < end && (line[off] == ' ' || line[off] == '\t')) off++;
+		while(end > off && (line[end-1] == '\r' || line[end-1] == '\n' || line[end-1] == ' ')) end--;
+
+		resendLine = -1;
+		hasTemperature = hasPosition = false;
+
+		if(off >= end) {
+			type = Type.NONE;
+			return type;
+		}
+
+		// Determine the type of the response
+		if(startsWith(line, off, end, OK)) {
+			type = Type.OK;
+		} else if(startsWith(line, off, end, WAIT)) {
+			type = Type.WAIT;
+		} else if(startsWith(line, off, end, BUSY) ||
+				(startsWith(line, off, end, ECHO) && startsWith(line, off + ECHO.length, end, BUSY))) {
+			// Marlin sends its keep-alive as "echo:busy: processing"
+			type = Type.BUSY;
+		} else if(startsWith(line, off, end, RESEND) || startsWith(line, off, end, RS)) {
+			type = Type.RESEND;
+			// The line number is the first number following the keyword
+			int i = off + 2;
+			while(i < end && (line[i] < '0' || line[i] > '9')) i++;
+			int j = i;
+			while(j < end && line[j] >= '0' && line[j] <= '9') j++;
+			resendLine = Command.parseIntFromCharBuf(line, i, j);
+			return type;
+		} else if(startsWith(line, off, end, ERROR) || startsWith(line, off, end, ERROR_ALT)) {
+			type = Type.ERROR;
+			return type;
+		} else if(startsWith(line, off, end, START)) {
+			type = Type.START;
+			return type;
+		} else {
+			type = Type.OTHER;
+		}
+
+		parseTelemetry(line, off, end, timestamp);
+		return type;
+	}
+
+	/**
+	 * Scan a line for "key:value" pairs holding temperatures ("T:210.3 /210.0 B:60.1 /60.0")
+	 * or positions ("X:10.00 Y:20.00 Z:0.30 E:1.20 Count X:...") and store them.
+	 */
+	private void parseTelemetry(byte[] line, int off, int end, long timestamp) {
+		has_T = has_T0 = has_B = has_X = has_Y = has_Z = has_E = false;
+		tTarget = t0Target = bTarget = Float.NaN;
+
+		int i = off;
+		while(i < end) {
+			byte c = line[i];
+			if(!isLetter(c)) {
+				i++;
+				continue;
+			}
+			// Find the end of the key
+			int keyStart = i;
+			while(i < end && (isLetter(line[i]) || (line[i] >= '0' && line[i] <= '9'))) i++;
+			int keyLen = i - keyStart;
+			// Everything after "Count" is in steps rather than mm
+			if(keyLen == COUNT.length && startsWith(line, keyStart, end, COUNT)) break;
+			if(i >= end || line[i] != ':') continue;
+			i++;
+			// Only single letter keys are of interest, plus "T0:" for multi extruder machines
+			// which do not report a bare "T:"; "T1:" and friends are skipped
+			boolean isT0 = keyLen == 2 && (line[keyStart] == 'T' || line[keyStart] == 't') && line[keyStart+1] == '0';
+			if(keyLen != 1 && !isT0) continue;
+
+			float val = parseValue(line, i, end);
+			if(valueEnd == i) continue;
+			i = valueEnd;
+
+			if(isT0) {
+				if(!has_T0) {
+					has_T0 = true;
+					t0 = val;
+					i = parseTarget(line, i, end);
+					t0Target = targetValue;
+				}
+				continue;
+			}
+
+			switch(line[keyStart]) {
+			case 'T': case 't':
+				if(!has_T) {
+					has_T = true;
+					t = val;
+					i = parseTarget(line, i, end);
+					tTarget = targetValue;
+				}
+				break;
+			case 'B': case 'b':
+				if(!has_B) {
+					has_B = true;
+					b = val;
+					i = parseTarget(line, i, end);
+					bTarget = targetValue;
+				}
+				break;
+			case 'X': case 'x': has_X = true; x = val; break;
+			case 'Y': case 'y': has_Y = true; y = val; break;
+			case 'Z': case 'z': has_Z = true; z = val; break;
+			case 'E': case 'e': has_E = true; e = val; break;
+			}
+		}
+
+		if(!has_T && has_T0) {
+			has_T = true;
+			t = t0;
+			tTarget = t0Target;
+		}
+
+		if(has_T || has_B) {
+			// Temperature report - "E:" in here is the extruder number, not a position
+			hasTemperature = true;
+			if(has_T) {
+				hotend = t;
+				if(!Float.isNaN(tTarget)) hotendTarget = tTarget;
+			}
+			if(has_B) {
+				bed = b;
+				if(!Float.isNaN(bTarget)) bedTarget = bTarget;
+			}
+		} else if(has_X || has_Y || has_Z) {
+			hasPosition = true;
+			if(has_X) posX = x;
+			if(has_Y) posY = y;
+			if(has_Z) posZ = z;
+			if(has_E) posE = e;
+		} else {
+			return;
+		}
+
+		if(telemetry != null)
+			telemetry.add(timestamp, hotend, hotendTarget, bed, bedTarget, posX, posY, posZ, posE);
+	}
+
+	/**
+	 * Parse an optional " /210.0" target following a temperature.
+	 * @return Position after the target, or the original position if there was none
+	 */
+	private int parseTarget(byte[] line, int i, int end) {
+		targetValue = Float.NaN;
+		int j = i;
+		while(j < end && line[j] == ' ') j++;
+		if(j >= end || line[j] != '/') return i;
+		j++;
+		while(j < end && line[j] == ' ') j++;
+		float val = parseValue(line, j, end);
+		if(valueEnd == j) return i;
+		targetValue = val;
+		return valueEnd;
+	}
+
+	/**
+	 * Parse the number starting at the given position, skipping leading spaces. The end of
+	 * the number is stored in valueEnd; it equals the start if no number was found.
+	 */
+	private float parseValue(byte[] line, int start, int end) {
+		int i = start;
+		while(i < end && line[i] == ' ') i++;
+		int j = i;
+		if(j < end && line[j] == '-') j++;
+		while(j < end && ((line[j] >= '0' && line[j] <= '9') || line[j] == '.')) j++;
+		if(j == i || (j == i + 1 && line[i] == '-')) {
+			valueEnd = start;
+			return 0.0f;
+		}
+		valueEnd = j;
+		return Command.parseFloatFromCharBuf(line, i, j);
+	}
+
+	private static boolean isLetter(byte c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	/**
+	 * Test if the bytes at 'off' start with the given lower case prefix, ignoring case.
+	 */
+	private static boolean startsWith(byte[] line, int off, int end, byte[] prefix) {
+		if(end - off < prefix.length) return false;
+		for(int i=0;i<prefix.length;i++) {
+			byte c = line[off+i];
+			if(c >= 'A' && c <= 'Z') c += 'a' - 'A';
+			if(c != prefix[i]) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,132 @@
+package nl.cyberwizzard.repdroid;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size ring buffer holding timestamped temperature and position samples reported
+ * by the printer.
+ *
+ * All storage is allocated up front in atomic arrays of primitives (floats are kept as their
+ * raw bits) so adding a sample never creates objects. There is a single writer (the thread
+ * feeding the ResponseParser) and any number of readers (graphs, status views). Readers do
+ * not take a lock: they copy the samples they want and afterwards drop the ones the writer
+ * has moved past in the meantime.
+ *
+ * Every slot access is volatile, so a reader that copied a value of a newer lap has also
+ * seen the write counter move to that lap when it looks again, and drops the sample. What
+ * read() returns is therefore never torn, even when a reader gets lapped while copying.
+ */
+public final class TelemetryBuffer {
+	// Field numbers, used to select a series when reading
+	public static final int HOTEND = 0;
+	public static final int HOTEND_TARGET = 1;
+	public static final int BED = 2;
+	public static final int BED_TARGET = 3;
+	public static final int X = 4;
+	public static final int Y = 5;
+	public static final int Z = 6;
+	public static final int E = 7;
+	public static final int FIELDS = 8;
+
+	private final int capacity;				// Number of samples, always a power of two
+	private final int mask;					// capacity - 1, to map a sequence number on a slot
+	private final AtomicLongArray time;		// Timestamp per slot (System.nanoTime())
+	private final AtomicIntegerArray values;	// FIELDS values per slot, as float bits
+
+	// Number of samples ever written; a sample with sequence number s lives in slot s & mask
+	private volatile long written = 0;
+
+	/**
+	 * Create a buffer holding at least the given number of samples.
+	 * @param size Minimum number of samples to keep, rounded up to a power of two
+	 */
+	public TelemetryBuffer(int size) {
+		if(size <= 0) throw new IllegalArgumentException("Buffer size must be positive: " + size);
+		int c = 1;
+		while(c < size) c <<= 1;
+		capacity = c;
+		mask = c - 1;
+		time = new AtomicLongArray(c);
+		values = new AtomicIntegerArray(c * FIELDS);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the total number of samples written so far. This is also the sequence number the
+	 * next sample will get, so readers can use it to only fetch what is new.
+	 */
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * Append a sample. Must only be called from a single thread.
+	 */
+	public void add(long timestamp, float hotend, float hotendTarget, float bed, float bedTarget,
+			float x, float y, float z, float e) {
+		long seq = written;
+		int slot = (int)(seq & mask);
+		int base = slot * FIELDS;
+		time.set(slot, timestamp);
+		values.set(base + HOTEND, Float.floatToRawIntBits(hotend));
+		values.set(base + HOTEND_TARGET, Float.floatToRawIntBits(hotendTarget));
+		values.set(base + BED, Float.floatToRawIntBits(bed));
+		values.set(base + BED_TARGET, Float.floatToRawIntBits(bedTarget));
+		values.set(base + X, Float.floatToRawIntBits(x));
+		values.set(base + Y, Float.floatToRawIntBits(y));
+		values.set(base + Z, Float.floatToRawIntBits(z));
+		values.set(base + E, Float.floatToRawIntBits(e));
+		// Publish the sample
+		written = seq + 1;
+	}
+
+	/**
+	 * Get the most recent value of a field.
+	 * @param field One of the field constants
+	 * @return The value or NaN when no sample was written yet
+	 */
+	public float latest(int field) {
+		long seq = written - 1;
+		if(seq < 0) return Float.NaN;
+		return Float.intBitsToFloat(values.get((int)(seq & mask) * FIELDS + field));
+	}
+
+	/**
+	 * Copy the newest samples of one field, starting no earlier than sequence number 'from',
+	 * into the given arrays, oldest first. Samples the writer overwrote while copying are dropped,
+	 * as is the oldest slot, which the writer may be filling right now; at most capacity - 1
+	 * samples are returned.
+	 * @param field One of the field constants
+	 * @param from First sequence number of interest, use 0 for everything still buffered
+	 * @param times Receives the timestamps
+	 * @param out Receives the values
+	 * @return Number of samples copied
+	 */
+	public int read(int field, long from, long times[], float out[]) {
+		long end = written;
+		long start = Math.max(from, end - capacity);
+		int n = (int)Math.min(end - start, Math.min(times.length, out.length));
+		if(n <= 0) return 0;
+		start = end - n;
+
+		for(int i=0;i<n;i++) {
+			int slot = (int)((start + i) & mask);
+			times[i] = time.get(slot);
+			out[i] = Float.intBitsToFloat(values.get(slot * FIELDS + field));
+		}
+
+		// The writer may have lapped us while copying; the slot it is working on now belongs
+		// to sequence number (written - capacity), so everything up to and including that is suspect
+		long valid = written - capacity + 1;
+		int drop = (int)Math.max(0, Math.min(n, valid - start));
+		if(drop > 0) {
+			System.arraycopy(times, drop, times, 0, n - drop);
+			System.arraycopy(out, drop, out, 0, n - drop);
+		}
+		return n - drop;
+	}
+}
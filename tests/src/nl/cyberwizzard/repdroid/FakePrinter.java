@@ -0,0 +1,104 @@
+package nl.cyberwizzard.repdroid;
+
+import java.io.IOException;
+
+/**
+ * Printer simulator for testing the send loop without hardware. Every received line is
+ * acknowledged with "ok" after a fixed processing time; every tenth answer also carries a
+ * temperature report, like a host polling with M105 would see.
+ *
+ * It can also misbehave: ask for some lines again, leave out the extra "ok" Marlin sends
+ * after "Resend:", or stop answering altogether.
+ */
+public class FakePrinter implements PrinterConnection {
+	private static final byte[] OK = "ok\n".getBytes();
+	private static final byte[] OK_TEMP = "ok T:210.3 /210.0 B:60.1 /60.0 @:64\n".getBytes();
+	private static final byte[] RESEND = "Resend: 1\nok\n".getBytes();
+	private static final byte[] RESEND_ONLY = "Resend: 1\n".getBytes();
+
+	private final long processing;			// ns needed to "execute" a command
+	private final long due[] = new long[64];	// Times at which pending answers become available
+	private final boolean lost[] = new boolean[64];	// Pending lines which arrived garbled
+	private int head = 0, pending = 0;
+	private long lines = 0;					// Lines ever written to us
+	private long received = 0;
+	private boolean closed = false;
+
+	private int resendEvery = 0;			// Ask for every n-th line again, 0 for never
+	private boolean okAfterResend = true;	// Follow "Resend:" with an "ok", like Marlin
+	private long hangAfter = -1;			// Stop answering after this many commands
+
+	/**
+	 * @param processingNanos Time the printer takes to handle each command
+	 */
+	public FakePrinter(long processingNanos) {
+		this.processing = processingNanos;
+	}
+
+	/**
+	 * Pretend every n-th line arrived garbled and ask for it again.
+	 * @param okAfterResend True to send an extra "ok" after "Resend:", like Marlin does
+	 */
+	public synchronized FakePrinter resendEvery(int n, boolean okAfterResend) {
+		this.resendEvery = n;
+		this.okAfterResend = okAfterResend;
+		return this;
+	}
+
+	/**
+	 * Stop answering once the given number of commands was acknowledged.
+	 */
+	public synchronized FakePrinter hangAfter(long commands) {
+		this.hangAfter = commands;
+		return this;
+	}
+
+	public synchronized void write(byte[] buf, int off, int len) throws IOException {
+		if(closed) throw new IOException("Printer closed");
+		long now = System.nanoTime();
+		for(int i=off;i<off+len;i++) {
+			if(buf[i] != '\n') continue;
+			if(pending == due.length) throw new IOException("Printer buffer overflow");
+			// Commands are handled one after another, like the planner would
+			int slot = (head + pending) % due.length;
+			long start = pending > 0 ? Math.max(now, due[(head + pending - 1) % due.length]) : now;
+			due[slot] = start + processing;
+			lines++;
+			lost[slot] = resendEvery > 0 && lines % resendEvery == 0;
+			pending++;
+		}
+	}
+
+	public synchronized int read(byte[] buf, int off, int len) throws IOException {
+		if(closed) return -1;
+		long now = System.nanoTime();
+		int n = 0;
+		while(pending > 0 && due[head] <= now && received != hangAfter) {
+			byte[] answer;
+			if(lost[head]) answer = okAfterResend ? RESEND : RESEND_ONLY;
+			else answer = (received % 10 == 9) ? OK_TEMP : OK;
+			if(n + answer.length > len) break;
+			System.arraycopy(answer, 0, buf, off + n, answer.length);
+			n += answer.length;
+			if(!lost[head]) received++;
+			head = (head + 1) % due.length;
+			pending--;
+		}
+		return n;
+	}
+
+	public synchronized void close() {
+		closed = true;
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return Number of commands answered so far
+	 */
+	public synchronized long getReceived() {
+		return received;
+	}
+}
@@ -0,0 +1,61 @@
+package nl.cyberwizzard.repdroid;
+
+import java.io.File;
+
+/**
+ * Runs the same job on several FakePrinters at once and reports the send rate and latency
+ * of each, to check that the PrinterHost keeps all printers going at the same pace.
+ */
+public class FakePrinterHarness {
+	/**
+	 * @param job G-code file to print on every printer
+	 * @param printers Number of simulated printers
+	 * @param threads Size of the shared worker pool
+	 * @param processingNanos Time each fake printer needs per command
+	 * @param timeoutMs Maximum time to wait for all jobs
+	 * @return One line per printer with its statistics
+	 */
+	public static String run(File job, int printers, int threads, long processingNanos, long timeoutMs) throws Exception {
+		PrinterHost host = new PrinterHost(threads);
+		PrintSession sessions[] = new PrintSession[printers];
+		try {
+			for(int i=0;i<printers;i++) {
+				sessions[i] = new PrintSession("printer"+i, job);
+				host.start(sessions[i], new FakePrinter(processingNanos));
+			}
+			if(!host.awaitIdle(timeoutMs))
+				Logger.w("FakePrinterHarness", "Timeout, reporting partial results");
+		} finally {
+			host.shutdown();
+		}
+
+		StringBuilder sb = new StringBuilder();
+		double minRate = Double.MAX_VALUE, maxRate = 0.0;
+		for(PrintSession s : sessions) {
+			double rate = s.getSendRate();
+			minRate = Math.min(minRate, rate);
+			maxRate = Math.max(maxRate, rate);
+			sb.append(s.getName()).append(' ').append(s.getState())
+				.append(" sent=").append(s.getSent())
+				.append(" rate=").append((long)rate).append("/s")
+				.append(" ack[").append(s.getAckLatency()).append(']')
+				.append(" queue[").append(s.getQueueLatency()).append("]\n");
+		}
+		sb.append("rate spread: ").append((long)minRate).append(" - ").append((long)maxRate).append("/s\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Usage: FakePrinterHarness file.gcode [printers] [threads] [processing us]
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length < 1) {
+			System.err.println("Usage: FakePrinterHarness file.gcode [printers] [threads] [processing us]");
+			return;
+		}
+		int printers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+		long processing = args.length > 3 ? Long.parseLong(args[3]) * 1000 : 1000000;
+		System.out.print(run(new File(args[0]), printers, threads, processing, 600000));
+	}
+}
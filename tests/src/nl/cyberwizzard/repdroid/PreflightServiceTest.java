@@ -0,0 +1,214 @@
+package nl.cyberwizzard.repdroid;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class PreflightServiceTest extends TestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("preflight", "");
+		dir.delete();
+		assertTrue(dir.mkdir());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File files[] = dir.listFiles();
+		if(files != null)
+			for(File f : files) f.delete();
+		dir.delete();
+	}
+
+	private File writeJob(String name, String content) throws IOException {
+		File f = new File(dir, name);
+		FileOutputStream os = new FileOutputStream(f);
+		try {
+			os.write(content.getBytes());
+		} finally {
+			os.close();
+		}
+		return f;
+	}
+
+	/**
+	 * A directory holding many more jobs than the pool and its queue must go through
+	 * submitDirectory() without rejections, and leave nothing behind in memory.
+	 */
+	public void testSubmitDirectoryLargerThanPool() throws Exception {
+		int jobs = 400;
+		for(int i=0;i<jobs;i++)
+			writeJob(String.format("job%03d.gcode", i), "G21\nG90\nG1 Z0.3 F300\nG1 X" + i + " Y1 E1\nG1 Z0.6\nG1 X2 Y2 E2\n");
+
+		PreflightService service = new PreflightService(4, 1, null);
+		ArrayList<Future<JobStats>> results = service.submitDirectory(dir);
+		service.shutdown();
+		assertTrue(service.awaitTermination(60000));
+
+		assertEquals(jobs, results.size());
+		for(Future<JobStats> f : results) {
+			JobStats s = f.get();
+			assertTrue(s.toString(), s.valid);
+			assertEquals(2, s.layers);
+			assertTrue(service.indexFileFor(new File(s.path)).exists());
+		}
+		assertTrue(service.pending.isEmpty());
+	}
+
+	/**
+	 * Index files are reused for unchanged jobs and hold the same layer index.
+	 */
+	public void testIndexFileRoundTrip() throws Exception {
+		File job = writeJob("a.gcode", "G28\nG1 Z0.2\nG1 X1 Y1 E0.5\nG1 Z0.4\nG1 X2 Y2 E1.0\n");
+		PreflightService service = new PreflightService(1, 1, null);
+		JobStats first = service.submit(job).get();
+		JobStats loaded = service.lookup(job);
+		service.shutdown();
+
+		assertNotNull(loaded);
+		assertEquals(first.lines, loaded.lines);
+		assertEquals(first.layers, loaded.layers);
+		assertEquals(first.root.next.offset, loaded.root.next.offset);
+		assertEquals(0.4f, loaded.root.next.next.z, 0.0001f);
+		assertEquals(1.0f, loaded.filament, 0.0001f);
+	}
+
+	/**
+	 * Arcs, firmware retraction and bed probing are ordinary slicer output and must not
+	 * make a job invalid; neither does a code this program has never heard of.
+	 */
+	public void testCommonCodesAreValid() throws Exception {
+		File job = writeJob("arcs.gcode", "G28\nG29\nG10\nG1 Z0.3\nG2 X10 Y10 I5 J0 E1\nG3 X0 Y0 R5 E2\nG11\nG80\nG42\n");
+		PreflightService service = new PreflightService(1, 1, null);
+		JobStats s = service.submit(job).get();
+		service.shutdown();
+
+		assertTrue(s.toString(), s.valid);
+		assertEquals(2, s.extrusions);
+		assertEquals(10.0f, s.maxX, 0.0001f);
+	}
+
+	/**
+	 * A malformed line makes the job invalid and the error shows the offending text.
+	 */
+	public void testMalformedJobIsInvalid() throws Exception {
+		File job = writeJob("bad.gcode", "G28\nGX1\n");
+		PreflightService service = new PreflightService(1, 1, null);
+		JobStats s = service.submit(job).get();
+		service.shutdown();
+
+		assertFalse(s.valid);
+		assertEquals(2, s.errorLine);
+		assertTrue(s.error, s.error.contains("GX1"));
+	}
+
+	/**
+	 * Numbers which are not numbers and lines which are not commands make a job invalid.
+	 */
+	public void testMalformedInputIsInvalid() throws Exception {
+		String bad[] = {"G1 Xabc", "G1 X", "G1 X1..2", "G1 X-", "G1 X1 E", "G92 E1a", "G4 Pms",
+				"FOO BAR", "M", "Mabc", "Tx", "%"};
+		PreflightService service = new PreflightService(2, 2, null);
+		ArrayList<Future<JobStats>> results = new ArrayList<Future<JobStats>>();
+		for(int i=0;i<bad.length;i++)
+			results.add(service.submit(writeJob("bad" + i + ".gcode", "G28\n" + bad[i] + "\nG1 X1\n")));
+		service.shutdown();
+
+		for(int i=0;i<bad.length;i++) {
+			JobStats s = results.get(i).get();
+			assertFalse(bad[i], s.valid);
+			assertEquals(bad[i], 2, s.errorLine);
+			assertTrue(s.error, s.error.contains(bad[i]));
+		}
+	}
+
+	/**
+	 * Flags without a value, tool changes, numbered lines and negative or fractional values
+	 * are all fine.
+	 */
+	public void testStrictParsingAcceptsValidInput() throws Exception {
+		File job = writeJob("good.gcode", "G28 X Y\nT0\nM104 S200 ; heat\nN10 G1 X1*45\nG4 P100\n" +
+				"G92 E-1.5\nG1 Z.3 F1200\nG1 X-1.25 Y10. E2\n\n   \n");
+		PreflightService service = new PreflightService(1, 1, null);
+		JobStats s = service.submit(job).get();
+		service.shutdown();
+
+		assertTrue(s.toString(), s.valid);
+		assertEquals(10, s.lines);
+		assertEquals(3.5f, s.filament, 0.0001f);
+		assertEquals(-1.25f, s.minX, 0.0001f);
+	}
+
+	/**
+	 * The command line tool reports invalid jobs through its exit status.
+	 */
+	public void testRunExitStatus() throws Exception {
+		File good = writeJob("good.gcode", "G28\nG1 Z0.2\nG1 X1 Y1 E1\n");
+		File bad = writeJob("bad.gcode", "G28\nFOO BAR\n");
+		try {
+			assertEquals(0, PreflightService.run(new String[] {"-j", "1", good.getPath()}));
+			assertEquals(1, PreflightService.run(new String[] {"-j", "1", dir.getPath()}));
+			assertEquals(2, PreflightService.run(new String[0]));
+		} finally {
+			Logger.verbose = true;
+		}
+		assertTrue(bad.exists());
+	}
+
+	/**
+	 * Jobs with the same name in different directories get their own index file in a
+	 * shared index directory.
+	 */
+	public void testIndexFilesDoNotCollide() throws Exception {
+		File a = new File(dir, "a");
+		File b = new File(dir, "b");
+		File idx = new File(dir, "idx");
+		assertTrue(a.mkdir() && b.mkdir() && idx.mkdir());
+		File jobA = writeJob("a/part.gcode", "G1 Z0.2\nG1 X1 E1\n");
+		File jobB = writeJob("b/part.gcode", "G1 Z0.2\nG1 X1 E1\nG1 Z0.4\nG1 X2 E2\n");
+		try {
+			PreflightService service = new PreflightService(1, 1, idx);
+			assertFalse(service.indexFileFor(jobA).equals(service.indexFileFor(jobB)));
+			service.submit(jobA).get();
+			service.submit(jobB).get();
+			service.shutdown();
+
+			assertEquals(1, service.lookup(jobA).layers);
+			assertEquals(2, service.lookup(jobB).layers);
+		} finally {
+			for(File d : new File[] {a, b, idx}) {
+				for(File f : d.listFiles()) f.delete();
+				d.delete();
+			}
+		}
+	}
+
+	/**
+	 * Cancelling queued jobs gives their slots back without leaving them in the executor's
+	 * queue, so later submits are not rejected while a long job keeps the only worker busy.
+	 */
+	public void testCancelledJobsFreeTheirSlots() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<300000;i++) sb.append("G1 X").append(i % 100).append(" Y1 E").append(i).append('\n');
+		File big = writeJob("big.gcode", sb.toString());
+		PreflightService service = new PreflightService(1, 1, null);
+		Future<JobStats> running = service.submit(big);
+
+		for(int i=0;i<5;i++) {
+			Future<JobStats> f = service.submit(writeJob("small" + i + ".gcode", "G28\nG1 X1\n"));
+			f.cancel(false);
+		}
+		JobStats last = service.submit(writeJob("last.gcode", "G28\nG1 X1\n")).get(60, TimeUnit.SECONDS);
+		service.shutdown();
+		assertTrue(service.awaitTermination(60000));
+
+		assertTrue(last.valid);
+		assertTrue(running.get().valid);
+		assertTrue(service.pending.isEmpty());
+	}
+}
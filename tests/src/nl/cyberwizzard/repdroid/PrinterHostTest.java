@@ -0,0 +1,188 @@
+package nl.cyberwizzard.repdroid;
+
+import java.io.*;
+
+import junit.framework.TestCase;
+
+public class PrinterHostTest extends TestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("printerhost", "");
+		dir.delete();
+		assertTrue(dir.mkdir());
+		Logger.verbose = false;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		Logger.verbose = true;
+		File files[] = dir.listFiles();
+		if(files != null)
+			for(File f : files) f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * Write a job with the given number of commands, plus comments and empty lines which
+	 * must not be sent.
+	 */
+	private File writeJob(String name, int commands) throws IOException {
+		File f = new File(dir, name);
+		Writer w = new BufferedWriter(new FileWriter(f));
+		try {
+			w.write("; generated\nG21\nG90\n\n");
+			for(int i=2;i<commands;i++) {
+				if(i % 100 == 0) w.write("G1 Z" + (i / 100) + ".0 ; next layer\n");
+				else w.write("G1 X" + (i % 50) + " Y" + (i % 30) + " E" + i + "\n");
+			}
+		} finally {
+			w.close();
+		}
+		return f;
+	}
+
+	public void testAllSessionsFinish() throws Exception {
+		File job = writeJob("job.gcode", 1000);
+		PrinterHost host = new PrinterHost(2);
+		PrintSession sessions[] = new PrintSession[4];
+		FakePrinter printers[] = new FakePrinter[4];
+		for(int i=0;i<sessions.length;i++) {
+			sessions[i] = new PrintSession("printer"+i, job);
+			printers[i] = new FakePrinter(0);
+			host.start(sessions[i], printers[i]);
+		}
+		assertTrue(host.awaitIdle(30000));
+		host.shutdown();
+
+		for(int i=0;i<sessions.length;i++) {
+			assertEquals(PrintSession.State.DONE, sessions[i].getState());
+			assertEquals(1000, sessions[i].getSent());
+			assertEquals(1000, printers[i].getReceived());
+			assertEquals(1000, sessions[i].getAckLatency().getCount());
+			assertTrue(printers[i].isClosed());
+		}
+		assertTrue(host.getSessions().isEmpty());
+	}
+
+	/**
+	 * Lines the printer asks for again are sent again and only counted once, whether or not
+	 * the firmware follows "Resend:" with an extra "ok".
+	 */
+	public void testResend() throws Exception {
+		File job = writeJob("job.gcode", 200);
+		PrinterHost host = new PrinterHost(1);
+		PrintSession marlin = new PrintSession("marlin", job);
+		FakePrinter marlinPrinter = new FakePrinter(0).resendEvery(7, true);
+		PrintSession other = new PrintSession("other", new File(job.getPath()));
+		FakePrinter otherPrinter = new FakePrinter(0).resendEvery(50, false);
+		// Without the extra ok the session has to time out on the skipped one
+		other.setAckTimeout(20);
+		host.start(marlin, marlinPrinter);
+		host.start(other, otherPrinter);
+		assertTrue(host.awaitIdle(30000));
+		host.shutdown();
+
+		assertEquals(PrintSession.State.DONE, marlin.getState());
+		assertEquals(200, marlin.getSent());
+		assertEquals(200, marlinPrinter.getReceived());
+		assertEquals(PrintSession.State.DONE, other.getState());
+		assertEquals(200, other.getSent());
+		assertEquals(200, otherPrinter.getReceived());
+	}
+
+	/**
+	 * A printer which stops answering fails its session after the ack timeout.
+	 */
+	public void testAckTimeout() throws Exception {
+		File job = writeJob("job.gcode", 100);
+		PrinterHost host = new PrinterHost(1);
+		PrintSession session = new PrintSession("hung", job);
+		FakePrinter printer = new FakePrinter(0).hangAfter(10);
+		session.setAckTimeout(50);
+		host.start(session, printer);
+		assertTrue(host.awaitIdle(30000));
+		host.shutdown();
+
+		assertEquals(PrintSession.State.FAILED, session.getState());
+		assertEquals(10, session.getSent());
+		assertTrue(printer.isClosed());
+	}
+
+	/**
+	 * A bug in a connection fails that one session and leaves the others alone.
+	 */
+	public void testRuntimeExceptionFailsSession() throws Exception {
+		File job = writeJob("job.gcode", 500);
+		PrinterHost host = new PrinterHost(1);
+		PrintSession broken = new PrintSession("broken", job);
+		PrintSession good = new PrintSession("good", new File(job.getPath()));
+		host.start(broken, new FakePrinter(0) {
+			@Override
+			public synchronized void write(byte[] buf, int off, int len) throws IOException {
+				if(getReceived() == 3) throw new IllegalStateException("driver bug");
+				super.write(buf, off, len);
+			}
+		});
+		host.start(good, new FakePrinter(0));
+		assertTrue(host.awaitIdle(30000));
+		host.shutdown();
+
+		assertEquals(PrintSession.State.FAILED, broken.getState());
+		assertEquals(3, broken.getSent());
+		assertEquals(PrintSession.State.DONE, good.getState());
+		assertEquals(500, good.getSent());
+		assertTrue(host.getSessions().isEmpty());
+	}
+
+	/**
+	 * With a single thread and equally fast printers, every printer must be served at about
+	 * the same rate; a scheduler which keeps serving one session would finish it long before
+	 * the others.
+	 */
+	public void testRoundRobinIsFair() throws Exception {
+		File job = writeJob("job.gcode", 3000);
+		PrinterHost host = new PrinterHost(1);
+		PrintSession sessions[] = new PrintSession[4];
+		for(int i=0;i<sessions.length;i++) {
+			sessions[i] = new PrintSession("printer"+i, job);
+			host.start(sessions[i], new FakePrinter(20000));
+		}
+		assertTrue(host.awaitIdle(60000));
+		host.shutdown();
+
+		double min = Double.MAX_VALUE, max = 0.0;
+		for(PrintSession s : sessions) {
+			assertEquals(PrintSession.State.DONE, s.getState());
+			assertEquals(3000, s.getSent());
+			min = Math.min(min, s.getSendRate());
+			max = Math.max(max, s.getSendRate());
+		}
+		assertTrue(min + " - " + max, min >= 0.7 * max);
+	}
+
+	/**
+	 * Shutting down with printers still busy fails and closes their sessions.
+	 */
+	public void testShutdownFinishesSessions() throws Exception {
+		File job = writeJob("job.gcode", 100);
+		PrinterHost host = new PrinterHost(2);
+		PrintSession sessions[] = new PrintSession[3];
+		FakePrinter printers[] = new FakePrinter[3];
+		for(int i=0;i<sessions.length;i++) {
+			sessions[i] = new PrintSession("printer"+i, job);
+			sessions[i].setAckTimeout(0);
+			printers[i] = new FakePrinter(0).hangAfter(5);
+			host.start(sessions[i], printers[i]);
+		}
+		assertFalse(host.awaitIdle(200));
+		host.shutdown();
+
+		assertTrue(host.awaitIdle(0));
+		for(int i=0;i<sessions.length;i++) {
+			assertEquals(PrintSession.State.FAILED, sessions[i].getState());
+			assertTrue(printers[i].isClosed());
+		}
+	}
+}
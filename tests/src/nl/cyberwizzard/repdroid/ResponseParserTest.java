@@ -0,0 +1,177 @@
+package nl.cyberwizzard.repdroid;
+
+import junit.framework.TestCase;
+
+public class ResponseParserTest extends TestCase {
+	private TelemetryBuffer telemetry;
+	private ResponseParser parser;
+
+	@Override
+	protected void setUp() throws Exception {
+		telemetry = new TelemetryBuffer(16);
+		parser = new ResponseParser(telemetry);
+	}
+
+	private ResponseParser.Type parse(String line) {
+		byte[] b = (line + "\r\n").getBytes();
+		return parser.parse(b, 0, b.length, 1000);
+	}
+
+	public void testLineTypes() {
+		assertEquals(ResponseParser.Type.OK, parse("ok"));
+		assertEquals(ResponseParser.Type.OK, parse("OK 12"));
+		assertEquals(ResponseParser.Type.WAIT, parse("wait"));
+		assertEquals(ResponseParser.Type.BUSY, parse("busy: processing"));
+		assertEquals(ResponseParser.Type.BUSY, parse("echo:busy: paused for user"));
+		assertEquals(ResponseParser.Type.OTHER, parse("echo:SD card ok"));
+		assertEquals(ResponseParser.Type.ERROR, parse("Error:Line Number is not Last Line Number+1, Last Line: 41"));
+		assertEquals(ResponseParser.Type.ERROR, parse("!! kill()"));
+		assertEquals(ResponseParser.Type.START, parse("start"));
+		assertEquals(ResponseParser.Type.NONE, parse("  "));
+		assertEquals(0, telemetry.getWritten());
+	}
+
+	public void testResendLineNumbers() {
+		assertEquals(ResponseParser.Type.RESEND, parse("Resend: 1234"));
+		assertEquals(1234, parser.getResendLine());
+		assertEquals(ResponseParser.Type.RESEND, parse("rs 42"));
+		assertEquals(42, parser.getResendLine());
+		assertEquals(ResponseParser.Type.RESEND, parse("rs N7"));
+		assertEquals(7, parser.getResendLine());
+		// Only the last line counts
+		parse("ok");
+		assertEquals(-1, parser.getResendLine());
+	}
+
+	public void testTemperatureWithTargets() {
+		assertEquals(ResponseParser.Type.OK, parse("ok T:210.3 /210.0 B:60.1 /60.0 @:64 B@:0"));
+		assertTrue(parser.hasTemperature());
+		assertFalse(parser.hasPosition());
+		assertEquals(210.3f, parser.getHotend(), 0.0001f);
+		assertEquals(210.0f, parser.getHotendTarget(), 0.0001f);
+		assertEquals(60.1f, parser.getBed(), 0.0001f);
+		assertEquals(60.0f, parser.getBedTarget(), 0.0001f);
+		assertEquals(1, telemetry.getWritten());
+		assertEquals(210.3f, telemetry.latest(TelemetryBuffer.HOTEND), 0.0001f);
+		assertEquals(60.0f, telemetry.latest(TelemetryBuffer.BED_TARGET), 0.0001f);
+	}
+
+	public void testTemperatureWithoutTargets() {
+		parse("T:20.5 B:19.0");
+		assertTrue(parser.hasTemperature());
+		assertEquals(20.5f, parser.getHotend(), 0.0001f);
+		assertTrue(Float.isNaN(parser.getHotendTarget()));
+		assertEquals(19.0f, parser.getBed(), 0.0001f);
+
+		// A known target is kept when a later report leaves it out
+		parse("ok T:190.0 /200.0 B:50.0 /60.0");
+		parse("T:195.5 B:55.0");
+		assertEquals(195.5f, parser.getHotend(), 0.0001f);
+		assertEquals(200.0f, parser.getHotendTarget(), 0.0001f);
+		assertEquals(60.0f, parser.getBedTarget(), 0.0001f);
+	}
+
+	public void testT0Fallback() {
+		parse("ok T0:200.0 /205.0 T1:180.5 /0.0 B:59.8 /60.0");
+		assertTrue(parser.hasTemperature());
+		assertEquals(200.0f, parser.getHotend(), 0.0001f);
+		assertEquals(205.0f, parser.getHotendTarget(), 0.0001f);
+		assertEquals(59.8f, parser.getBed(), 0.0001f);
+
+		// A bare "T:" wins over "T0:"
+		parse("ok T:190.0 /190.0 T0:200.0 /200.0");
+		assertEquals(190.0f, parser.getHotend(), 0.0001f);
+		assertEquals(190.0f, parser.getHotendTarget(), 0.0001f);
+	}
+
+	public void testExtruderInTemperatureReport() {
+		parse("T:200.5 E:0 W:?");
+		assertTrue(parser.hasTemperature());
+		assertFalse(parser.hasPosition());
+		assertEquals(200.5f, parser.getHotend(), 0.0001f);
+		assertTrue(Float.isNaN(telemetry.latest(TelemetryBuffer.E)));
+	}
+
+	public void testPositionStopsAtCount() {
+		assertEquals(ResponseParser.Type.OTHER, parse("X:10.00 Y:-20.50 Z:0.30 E:1.20 Count X:800 Y:-1640 Z:120"));
+		assertTrue(parser.hasPosition());
+		assertFalse(parser.hasTemperature());
+		assertEquals(10.0f, telemetry.latest(TelemetryBuffer.X), 0.0001f);
+		assertEquals(-20.5f, telemetry.latest(TelemetryBuffer.Y), 0.0001f);
+		assertEquals(0.3f, telemetry.latest(TelemetryBuffer.Z), 0.0001f);
+		assertEquals(1.2f, telemetry.latest(TelemetryBuffer.E), 0.0001f);
+
+		// Steps only, nothing to report
+		parse("Count X:800 Y:-1640 Z:120");
+		assertFalse(parser.hasPosition());
+		assertEquals(1, telemetry.getWritten());
+	}
+
+	public void testTelemetryWraparound() {
+		TelemetryBuffer buf = new TelemetryBuffer(5);
+		assertEquals(8, buf.getCapacity());
+		assertTrue(Float.isNaN(buf.latest(TelemetryBuffer.HOTEND)));
+		long times[] = new long[16];
+		float out[] = new float[16];
+		assertEquals(0, buf.read(TelemetryBuffer.HOTEND, 0, times, out));
+
+		for(int i=0;i<20;i++)
+			buf.add(i, i, 0, 0, 0, 0, 0, 0, -i);
+		assertEquals(20, buf.getWritten());
+		assertEquals(19.0f, buf.latest(TelemetryBuffer.HOTEND), 0.0f);
+
+		// Only the last 8 samples are still there, and the oldest slot is next in line for
+		// the writer, so 7 come back, oldest first
+		assertEquals(7, buf.read(TelemetryBuffer.HOTEND, 0, times, out));
+		for(int i=0;i<7;i++) {
+			assertEquals(13 + i, times[i]);
+			assertEquals(13 + i, out[i], 0.0f);
+		}
+
+		// Only what is new since sequence number 15
+		assertEquals(5, buf.read(TelemetryBuffer.E, 15, times, out));
+		for(int i=0;i<5;i++) {
+			assertEquals(15 + i, times[i]);
+			assertEquals(-(15 + i), out[i], 0.0f);
+		}
+
+		// Nothing new
+		assertEquals(0, buf.read(TelemetryBuffer.E, 20, times, out));
+
+		// Small arrays get the newest samples
+		long t3[] = new long[3];
+		float o3[] = new float[3];
+		assertEquals(3, buf.read(TelemetryBuffer.HOTEND, 0, t3, o3));
+		assertEquals(17, t3[0]);
+		assertEquals(19.0f, o3[2], 0.0f);
+	}
+
+	/**
+	 * A reader that keeps getting lapped by the writer must never see a sample whose value
+	 * does not belong to its timestamp.
+	 */
+	public void testLappedReadsAreNotTorn() throws Exception {
+		final TelemetryBuffer buf = new TelemetryBuffer(4);
+		final int samples = 2000000;
+		Thread writer = new Thread() {
+			public void run() {
+				for(int i=1;i<=samples;i++)
+					buf.add(i, i, i, i, i, i, i, i, i);
+			}
+		};
+		writer.start();
+
+		long times[] = new long[4];
+		float out[] = new float[4];
+		int reads = 0;
+		while(writer.isAlive() || reads == 0) {
+			int n = buf.read(TelemetryBuffer.Z, 0, times, out);
+			for(int i=0;i<n;i++) {
+				assertEquals((float)times[i], out[i], 0.0f);
+				if(i > 0) assertEquals(times[i-1] + 1, times[i]);
+			}
+			reads++;
+		}
+		writer.join();
+	}
+}
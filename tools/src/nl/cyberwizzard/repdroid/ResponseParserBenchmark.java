@@ -0,0 +1,60 @@
+package nl.cyberwizzard.repdroid;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Feeds a mix of typical firmware responses through a ResponseParser and reports the time
+ * and heap allocation per line. Plain JVM only: the allocation counter comes from the
+ * HotSpot specific com.sun.management.ThreadMXBean.
+ *
+ * Usage: ResponseParserBenchmark [lines]
+ */
+public class ResponseParserBenchmark {
+	private static final String[] RESPONSES = {
+		"ok",
+		"ok T:210.3 /210.0 B:60.1 /60.0 @:64 B@:0",
+		"ok T0:200.0 /200.0 T1:180.5 /0.0 B:59.8 /60.0",
+		"wait",
+		"echo:busy: processing",
+		"Resend: 1234",
+		"X:10.00 Y:-20.50 Z:0.30 E:1.20 Count X:800 Y:-1640 Z:120",
+		"T:200.5 E:0 W:?",
+		"echo:SD card ok",
+	};
+
+	public static void main(String[] args) {
+		int lines = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+
+		// Pre-encode the responses into one buffer, like a serial read would deliver them
+		byte[][] encoded = new byte[RESPONSES.length][];
+		for(int i=0;i<RESPONSES.length;i++) encoded[i] = (RESPONSES[i] + "\r\n").getBytes();
+
+		ResponseParser parser = new ResponseParser(new TelemetryBuffer(1024));
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+
+		// Warm up so the JIT has compiled the parser before measuring
+		run(parser, encoded, lines / 5);
+
+		long bytesBefore = mx.getThreadAllocatedBytes(tid);
+		long start = System.nanoTime();
+		int checksum = run(parser, encoded, lines);
+		long elapsed = System.nanoTime() - start;
+		long allocated = mx.getThreadAllocatedBytes(tid) - bytesBefore;
+
+		System.out.println("lines:      " + lines);
+		System.out.println("ns/line:    " + (elapsed / (double)lines));
+		System.out.println("lines/s:    " + (long)(lines * 1e9 / elapsed));
+		System.out.println("allocated:  " + allocated + " bytes (" + (allocated / (double)lines) + " per line)");
+		System.out.println("samples:    " + parser.getTelemetry().getWritten() + " (checksum " + checksum + ")");
+	}
+
+	private static int run(ResponseParser parser, byte[][] encoded, int lines) {
+		int checksum = 0;
+		for(int n=0;n<lines;n++) {
+			byte[] line = encoded[n % encoded.length];
+			checksum += parser.parse(line, 0, line.length).ordinal();
+		}
+		return checksum;
+	}
+}